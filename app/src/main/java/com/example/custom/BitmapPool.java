@@ -0,0 +1,168 @@
+package com.example.custom;
+
+import android.content.ComponentCallbacks2;
+import android.graphics.Bitmap;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.TreeMap;
+
+/**
+ * Mutable bitmaps that are no longer displayed, kept for {@code inBitmap} decodes and
+ * {@link Bitmap#reconfigure}. Bitmaps are bucketed by config and allocation size; a request is
+ * served by the smallest pooled bitmap that fits, unless it is more than twice the size needed.
+ * Once over {@link #setMaxSize(long)}, or the smaller size set by {@link #trimMemory(int)}, the
+ * oldest bitmaps are recycled.
+ */
+public class BitmapPool {
+
+    private final ArrayList<TreeMap<Integer, ArrayList<Bitmap>>> buckets = new ArrayList<>();
+    private final LinkedHashSet<Bitmap> order = new LinkedHashSet<>();
+    private long baseSize = 4 * 1024 * 1024;
+    private long maxSize = baseSize;
+    private long currentSize;
+
+    private long hits;
+    private long misses;
+    private long puts;
+    private long evictions;
+
+    private static volatile BitmapPool Instance = null;
+
+    private BitmapPool() {
+        buckets.add(new TreeMap<>());
+        buckets.add(new TreeMap<>());
+    }
+
+    public static BitmapPool getInstance() {
+        BitmapPool localInstance = Instance;
+        if (localInstance == null) {
+            synchronized (BitmapPool.class) {
+                localInstance = Instance;
+                if (localInstance == null) {
+                    Instance = localInstance = new BitmapPool();
+                }
+            }
+        }
+        return localInstance;
+    }
+
+    private static int getConfigIndex(Bitmap.Config config) {
+        if (config == Bitmap.Config.ARGB_8888) {
+            return 0;
+        } else if (config == Bitmap.Config.RGB_565) {
+            return 1;
+        }
+        return -1;
+    }
+
+    public synchronized void setMaxSize(long value) {
+        baseSize = maxSize = value;
+        trimToSize(maxSize);
+    }
+
+    /**
+     * Scales the pool for a {@link ComponentCallbacks2} trim level. The pool is emptied and
+     * stops taking bitmaps on {@code TRIM_MEMORY_COMPLETE} and
+     * {@code TRIM_MEMORY_RUNNING_CRITICAL}; levels below {@code TRIM_MEMORY_RUNNING_LOW}
+     * give back the full size.
+     */
+    public synchronized void trimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_COMPLETE || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            maxSize = 0;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            maxSize = baseSize / 4;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            maxSize = baseSize / 2;
+        } else {
+            maxSize = baseSize;
+        }
+        trimToSize(maxSize);
+    }
+
+    /**
+     * Returns a mutable bitmap whose allocation can hold {@code width x height} pixels of
+     * {@code config}, or null. Its current dimensions are arbitrary: decode into it with
+     * {@code inBitmap} or call {@link Bitmap#reconfigure} first.
+     */
+    public synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+        int configIndex = getConfigIndex(config);
+        if (configIndex < 0 || width <= 0 || height <= 0) {
+            return null;
+        }
+        int size = width * height * (configIndex == 0 ? 4 : 2);
+        TreeMap<Integer, ArrayList<Bitmap>> bucket = buckets.get(configIndex);
+        Integer key = bucket.ceilingKey(size);
+        if (key == null || key > size * 2) {
+            misses++;
+            return null;
+        }
+        ArrayList<Bitmap> bitmaps = bucket.get(key);
+        Bitmap bitmap = bitmaps.remove(bitmaps.size() - 1);
+        if (bitmaps.isEmpty()) {
+            bucket.remove(key);
+        }
+        order.remove(bitmap);
+        currentSize -= key;
+        hits++;
+        return bitmap;
+    }
+
+    /**
+     * Hands over a bitmap nobody draws anymore. It is either pooled or recycled, so the
+     * caller must not touch it afterwards.
+     */
+    public synchronized void put(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled() || order.contains(bitmap)) {
+            return;
+        }
+        int configIndex = getConfigIndex(bitmap.getConfig());
+        int size = bitmap.getAllocationByteCount();
+        if (configIndex < 0 || !bitmap.isMutable() || size > maxSize / 2) {
+            bitmap.recycle();
+            return;
+        }
+        order.add(bitmap);
+        ArrayList<Bitmap> bitmaps = buckets.get(configIndex).get(size);
+        if (bitmaps == null) {
+            bitmaps = new ArrayList<>(2);
+            buckets.get(configIndex).put(size, bitmaps);
+        }
+        bitmaps.add(bitmap);
+        currentSize += size;
+        puts++;
+        trimToSize(maxSize);
+    }
+
+    public synchronized void clear() {
+        trimToSize(0);
+    }
+
+    private void trimToSize(long size) {
+        Iterator<Bitmap> iterator = order.iterator();
+        while (currentSize > size && iterator.hasNext()) {
+            Bitmap bitmap = iterator.next();
+            iterator.remove();
+            int key = bitmap.getAllocationByteCount();
+            TreeMap<Integer, ArrayList<Bitmap>> bucket = buckets.get(getConfigIndex(bitmap.getConfig()));
+            ArrayList<Bitmap> bitmaps = bucket.get(key);
+            bitmaps.remove(bitmap);
+            if (bitmaps.isEmpty()) {
+                bucket.remove(key);
+            }
+            currentSize -= key;
+            evictions++;
+            bitmap.recycle();
+        }
+    }
+
+    public synchronized float getHitRate() {
+        long total = hits + misses;
+        return total == 0 ? 0 : hits / (float) total;
+    }
+
+    public synchronized String getStats() {
+        return "hits=" + hits + " misses=" + misses + " hitRate=" + (int) (getHitRate() * 100) + "% puts=" + puts + " evictions=" + evictions + " size=" + currentSize / 1024 + "/" + maxSize / 1024 + "KB";
+    }
+}
@@ -4,38 +4,541 @@ package com.example.custom;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
 
-import java.util.concurrent.CountDownLatch;
+import java.lang.ref.WeakReference;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
-public class DispatchQueue extends Thread {
+/**
+ * Serial task queue. By default every queue owns a thread with its own {@link Looper}; a
+ * pooled queue instead runs its tasks on a pool, one at a time and in post order, so it costs
+ * no thread of its own while idle. Queues whose tasks must not wait behind someone else's
+ * should keep a thread of their own, and long CPU-bound work should get a pool from
+ * {@link #createPool} sized for it rather than share {@link #getSharedPool()}.
+ * <p>
+ * Pooled queues also understand {@link TaskGroup}s: each group sits in one of three priority
+ * lanes and the queue always serves the highest non-empty lane, round-robin between the
+ * groups in it. Tasks of one group keep their post order; plain posts go to a built-in
+ * visible group and so stay FIFO among themselves. Looper queues run grouped tasks in post
+ * order and only honour cancellation.
+ */
+public class DispatchQueue implements Executor {
 
+    public static final int PRIORITY_VISIBLE = 0;
+    public static final int PRIORITY_PREFETCH = 1;
+    public static final int PRIORITY_BACKGROUND = 2;
+    private static final int PRIORITIES_COUNT = 3;
+
+    private static final int MAX_TASKS_PER_DRAIN = 32;
+
+    private static final int HISTOGRAM_SIZE = 24;
+
+    private static final int SHARED_POOL_SIZE = 4;
+
+    private static volatile ScheduledThreadPoolExecutor sharedPool;
+    private static volatile boolean metricsEnabled;
+    private static final ArrayList<WeakReference<DispatchQueue>> liveQueues = new ArrayList<>();
+
+    private final String name;
+    private final boolean pooled;
+    private final ScheduledThreadPoolExecutor pool;
+    private volatile int priority = Thread.NORM_PRIORITY;
+
+    private Thread thread;
     private volatile Handler handler = null;
-    private CountDownLatch syncLatch = new CountDownLatch(1);
+    private volatile boolean ready;
+    private final ConcurrentLinkedQueue<PendingOperation> pendingOperations;
+    private final AtomicInteger pendingOperationsCount;
+
+    private final Object sync = new Object();
+    private final TaskGroup defaultGroup = new TaskGroup(PRIORITY_VISIBLE);
+    private final HashMap<TaskGroup, GroupTasks> groupTasks;
+    private final GroupTasks[] laneHeads = new GroupTasks[PRIORITIES_COUNT];
+    private final GroupTasks[] laneTails = new GroupTasks[PRIORITIES_COUNT];
+    private final ArrayList<DelayedTask> delayedTasks;
+    private boolean draining;
+    private boolean recycled;
+    private int pendingCount;
+    private final AtomicLong postedCount = new AtomicLong();
+    private final QueueMetrics metrics = new QueueMetrics();
+    private final Runnable drainRunnable = this::drain;
+    private final Object frameBatchSync = new Object();
+    private ArrayList<Runnable> frameBatch = new ArrayList<>();
+    private boolean frameBatchScheduled;
+    private final Runnable flushFrameBatchRunnable = this::flushFrameBatch;
+
+    /**
+     * A set of tasks that is reprioritised or cancelled as a whole. Both operations cost O(1)
+     * per queue the group currently has tasks in, independent of how many tasks are pending.
+     * Cancelling drops pending tasks; a task that already started runs to completion. Dropped
+     * tasks that implement {@link DroppableTask} are told so.
+     */
+    public static class TaskGroup {
+
+        private volatile int priority;
+        private volatile boolean cancelled;
+        private final ArrayList<DispatchQueue> queues = new ArrayList<>(2);
+
+        public TaskGroup(int priority) {
+            this.priority = priority;
+        }
+
+        public int getPriority() {
+            return priority;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        public void setPriority(int value) {
+            DispatchQueue[] attached;
+            synchronized (this) {
+                if (priority == value || cancelled) {
+                    return;
+                }
+                priority = value;
+                attached = queues.toArray(new DispatchQueue[0]);
+            }
+            for (int a = 0; a < attached.length; a++) {
+                attached[a].relinkGroup(this);
+            }
+        }
+
+        public void cancel() {
+            DispatchQueue[] attached;
+            synchronized (this) {
+                if (cancelled) {
+                    return;
+                }
+                cancelled = true;
+                attached = queues.toArray(new DispatchQueue[0]);
+                queues.clear();
+            }
+            for (int a = 0; a < attached.length; a++) {
+                attached[a].dropGroup(this);
+            }
+        }
+    }
+
+    /**
+     * A task that has to release something when it never runs, because its group was cancelled
+     * while it was pending or before it was posted. {@link #onDropped()} is called on the
+     * thread that cancelled or posted. Tasks removed with {@link #cancelRunnable} or
+     * {@link #cleanupQueue} are not notified.
+     */
+    public interface DroppableTask extends Runnable {
+        void onDropped();
+    }
+
+    private static void notifyDropped(Runnable runnable) {
+        if (runnable instanceof TimedTask) {
+            runnable = ((TimedTask) runnable).runnable;
+        }
+        if (runnable instanceof DroppableTask) {
+            ((DroppableTask) runnable).onDropped();
+        }
+    }
+
+    /**
+     * Snapshot of a queue's counters. Histogram bucket {@code i} counts tasks that took less
+     * than {@code 2^(i+1)} microseconds; the last bucket also takes everything longer.
+     * Depth and timings are only tracked for pooled queues, and timings only while
+     * {@link #setMetricsEnabled(boolean)} is on.
+     */
+    public static class QueueStats {
+        public String name;
+        public boolean pooled;
+        public int depth;
+        public long postedCount;
+        public long executedCount;
+        public long[] waitTimeHistogram;
+        public long[] runTimeHistogram;
+        public long totalWaitTime;
+        public long totalRunTime;
+        public long longestTaskTime;
+        public String longestTask;
+
+        public long getWaitTimePercentile(float percentile) {
+            return getPercentile(waitTimeHistogram, executedCount, percentile);
+        }
+
+        public long getRunTimePercentile(float percentile) {
+            return getPercentile(runTimeHistogram, executedCount, percentile);
+        }
+
+        private static long getPercentile(long[] histogram, long count, float percentile) {
+            long threshold = (long) Math.ceil(count * percentile);
+            long seen = 0;
+            for (int a = 0; a < histogram.length; a++) {
+                seen += histogram[a];
+                if (seen != 0 && seen >= threshold) {
+                    return (1L << (a + 1)) * 1000;
+                }
+            }
+            return 0;
+        }
+    }
+
+    private static class QueueMetrics {
+
+        private long executedCount;
+        private final long[] waitTimeHistogram = new long[HISTOGRAM_SIZE];
+        private final long[] runTimeHistogram = new long[HISTOGRAM_SIZE];
+        private long totalWaitTime;
+        private long totalRunTime;
+        private long longestTaskTime;
+        private String longestTask;
+
+        private synchronized void onTaskFinished(Runnable runnable, long waitTime, long runTime) {
+            executedCount++;
+            totalWaitTime += waitTime;
+            totalRunTime += runTime;
+            waitTimeHistogram[getBucket(waitTime)]++;
+            runTimeHistogram[getBucket(runTime)]++;
+            if (runTime > longestTaskTime) {
+                longestTaskTime = runTime;
+                longestTask = runnable.getClass().getName();
+            }
+        }
+
+        private static int getBucket(long time) {
+            long micros = time / 1000;
+            return Math.min(HISTOGRAM_SIZE - 1, 63 - Long.numberOfLeadingZeros(Math.max(1, micros)));
+        }
+
+        private synchronized void fill(QueueStats stats) {
+            stats.executedCount = executedCount;
+            stats.waitTimeHistogram = waitTimeHistogram.clone();
+            stats.runTimeHistogram = runTimeHistogram.clone();
+            stats.totalWaitTime = totalWaitTime;
+            stats.totalRunTime = totalRunTime;
+            stats.longestTaskTime = longestTaskTime;
+            stats.longestTask = longestTask;
+        }
+    }
+
+    private static final int OPERATION_POST = 0;
+    private static final int OPERATION_MESSAGE = 1;
+    private static final int OPERATION_CANCEL = 2;
+    private static final int OPERATION_CLEANUP = 3;
+    private static final int OPERATION_QUIT = 4;
+
+    private static class PendingOperation {
+
+        private final int type;
+        private final Runnable runnable;
+        private final Message message;
+        private final long uptime;
+
+        private PendingOperation(int type, Runnable runnable, Message message, long uptime) {
+            this.type = type;
+            this.runnable = runnable;
+            this.message = message;
+            this.uptime = uptime;
+        }
+    }
+
+    private static class BatchTask implements Runnable {
+
+        private final Runnable[] runnables;
+
+        private BatchTask(Runnable[] runnables) {
+            this.runnables = runnables;
+        }
+
+        /**
+         * Runs every runnable even if an earlier one throws, then rethrows the first failure
+         * so that it surfaces the same way as from a single posted runnable.
+         */
+        @Override
+        public void run() {
+            Throwable failure = null;
+            for (int a = 0; a < runnables.length; a++) {
+                try {
+                    runnables[a].run();
+                } catch (Throwable e) {
+                    if (failure == null) {
+                        failure = e;
+                    }
+                }
+            }
+            if (failure instanceof RuntimeException) {
+                throw (RuntimeException) failure;
+            } else if (failure instanceof Error) {
+                throw (Error) failure;
+            } else if (failure != null) {
+                throw new RuntimeException(failure);
+            }
+        }
+    }
+
+    private static class TimedTask implements Runnable {
+
+        private final Runnable runnable;
+        private final long enqueueTime;
+
+        private TimedTask(Runnable runnable, long enqueueTime) {
+            this.runnable = runnable;
+            this.enqueueTime = enqueueTime;
+        }
+
+        @Override
+        public void run() {
+            runnable.run();
+        }
+    }
+
+    private static class GroupTasks {
+
+        private final TaskGroup group;
+        private final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+        private GroupTasks prev;
+        private GroupTasks next;
+        private int lane = -1;
+
+        private GroupTasks(TaskGroup group) {
+            this.group = group;
+        }
+    }
+
+    private class DelayedTask implements Runnable {
+
+        private final Runnable runnable;
+        private final TaskGroup group;
+        private ScheduledFuture<?> future;
+        private boolean cancelled;
+
+        private DelayedTask(Runnable runnable, TaskGroup group) {
+            this.runnable = runnable;
+            this.group = group;
+        }
+
+        @Override
+        public void run() {
+            synchronized (sync) {
+                if (cancelled) {
+                    return;
+                }
+                delayedTasks.remove(this);
+            }
+            enqueue(runnable, group);
+        }
+    }
 
     public DispatchQueue(final String threadName) {
-        setName(threadName);
-        start();
+        this(threadName, false);
     }
 
-    public void sendMessage(Message msg, int delay) {
-        try {
-            syncLatch.await();
-            if (delay <= 0) {
-                handler.sendMessage(msg);
-            } else {
-                handler.sendMessageDelayed(msg, delay);
+    public DispatchQueue(final String threadName, boolean pooled) {
+        this(threadName, pooled ? getSharedPool() : null);
+    }
+
+    /**
+     * Creates a queue that runs on {@code pool}, or on its own Looper thread if it is null.
+     */
+    public DispatchQueue(final String threadName, ScheduledThreadPoolExecutor pool) {
+        name = threadName;
+        this.pool = pool;
+        pooled = pool != null;
+        if (pooled) {
+            groupTasks = new HashMap<>();
+            delayedTasks = new ArrayList<>();
+            pendingOperations = null;
+            pendingOperationsCount = null;
+        } else {
+            groupTasks = null;
+            delayedTasks = null;
+            pendingOperations = new ConcurrentLinkedQueue<>();
+            pendingOperationsCount = new AtomicInteger();
+            thread = new Thread(this::runLooper, threadName);
+            thread.start();
+        }
+        synchronized (liveQueues) {
+            pruneLiveQueues();
+            liveQueues.add(new WeakReference<>(this));
+        }
+    }
+
+    private static void pruneLiveQueues() {
+        for (int a = liveQueues.size() - 1; a >= 0; a--) {
+            if (liveQueues.get(a).get() == null) {
+                liveQueues.remove(a);
             }
-        } catch (Exception e) {
         }
     }
 
-    public void cancelRunnable(Runnable runnable) {
-        try {
-            syncLatch.await();
-            handler.removeCallbacks(runnable);
-        } catch (Exception e) {
+    /**
+     * Turns task timing on or off for all queues. While off a post costs one counter
+     * increment; tasks posted while it was off are not timed.
+     */
+    public static void setMetricsEnabled(boolean enabled) {
+        metricsEnabled = enabled;
+    }
 
+    /**
+     * Queues that were neither recycled nor garbage collected.
+     */
+    public static ArrayList<DispatchQueue> getLiveQueues() {
+        ArrayList<DispatchQueue> result = new ArrayList<>();
+        synchronized (liveQueues) {
+            pruneLiveQueues();
+            for (int a = 0, N = liveQueues.size(); a < N; a++) {
+                DispatchQueue queue = liveQueues.get(a).get();
+                if (queue != null) {
+                    result.add(queue);
+                }
+            }
+        }
+        return result;
+    }
+
+    public QueueStats getStats() {
+        QueueStats stats = new QueueStats();
+        stats.name = name;
+        stats.pooled = pooled;
+        stats.postedCount = postedCount.get();
+        if (pooled) {
+            synchronized (sync) {
+                stats.depth = pendingCount;
+            }
         }
+        metrics.fill(stats);
+        return stats;
+    }
+
+    /**
+     * One line per live queue:
+     * {@code name depth=n posted=n wait=p50/p99us run=p50/p99us longest=Class:us}.
+     */
+    public static String dumpStats() {
+        StringBuilder builder = new StringBuilder();
+        ArrayList<DispatchQueue> queues = getLiveQueues();
+        for (int a = 0; a < queues.size(); a++) {
+            QueueStats stats = queues.get(a).getStats();
+            builder.append(stats.name)
+                    .append(" depth=").append(stats.depth)
+                    .append(" posted=").append(stats.postedCount);
+            if (stats.executedCount != 0) {
+                builder.append(" wait=").append(stats.getWaitTimePercentile(0.5f) / 1000).append('/').append(stats.getWaitTimePercentile(0.99f) / 1000)
+                        .append(" run=").append(stats.getRunTimePercentile(0.5f) / 1000).append('/').append(stats.getRunTimePercentile(0.99f) / 1000);
+            }
+            if (stats.longestTask != null) {
+                String task = stats.longestTask;
+                builder.append(" longest=").append(task.substring(task.lastIndexOf('.') + 1)).append(':').append(stats.longestTaskTime / 1000);
+            }
+            builder.append('\n');
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Pool for short, mostly I/O-bound tasks. It has a fixed number of threads independent of
+     * the core count, so a queue blocked on disk does not hold back the others on small
+     * devices.
+     */
+    public static ScheduledThreadPoolExecutor getSharedPool() {
+        ScheduledThreadPoolExecutor localPool = sharedPool;
+        if (localPool == null) {
+            synchronized (DispatchQueue.class) {
+                localPool = sharedPool;
+                if (localPool == null) {
+                    sharedPool = localPool = createPool("DispatchQueuePool", SHARED_POOL_SIZE);
+                }
+            }
+        }
+        return localPool;
+    }
+
+    /**
+     * Creates a pool of {@code threadsCount} daemon threads for pooled queues of one workload.
+     * Giving it as many threads as it serves queues means none of them waits for another.
+     */
+    public static ScheduledThreadPoolExecutor createPool(String name, int threadsCount) {
+        AtomicInteger threadNumber = new AtomicInteger();
+        ThreadFactory factory = runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+        return new ScheduledThreadPoolExecutor(Math.max(1, threadsCount), factory);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public boolean isPooled() {
+        return pooled;
+    }
+
+    public void setPriority(int priority) {
+        this.priority = priority;
+        if (thread != null) {
+            thread.setPriority(priority);
+        }
+    }
+
+    public void sendMessage(Message msg, int delay) {
+        if (pooled) {
+            postRunnable(() -> handleMessage(msg), delay);
+            return;
+        }
+        if (deferUntilReady(OPERATION_MESSAGE, null, msg, delay)) {
+            return;
+        }
+        if (delay <= 0) {
+            handler.sendMessage(msg);
+        } else {
+            handler.sendMessageDelayed(msg, delay);
+        }
+    }
+
+    public void cancelRunnable(Runnable runnable) {
+        if (pooled) {
+            synchronized (sync) {
+                for (Iterator<GroupTasks> iterator = groupTasks.values().iterator(); iterator.hasNext(); ) {
+                    GroupTasks entry = iterator.next();
+                    for (Iterator<Runnable> tasksIterator = entry.tasks.iterator(); tasksIterator.hasNext(); ) {
+                        Runnable task = tasksIterator.next();
+                        if (task == runnable || task instanceof TimedTask && ((TimedTask) task).runnable == runnable) {
+                            tasksIterator.remove();
+                            pendingCount--;
+                        }
+                    }
+                    if (entry.tasks.isEmpty()) {
+                        iterator.remove();
+                        unlink(entry);
+                        detach(entry.group);
+                    }
+                }
+                for (int a = delayedTasks.size() - 1; a >= 0; a--) {
+                    DelayedTask task = delayedTasks.get(a);
+                    if (task.runnable == runnable) {
+                        task.cancelled = true;
+                        task.future.cancel(false);
+                        delayedTasks.remove(a);
+                    }
+                }
+            }
+            return;
+        }
+        if (deferUntilReady(OPERATION_CANCEL, runnable, null, 0)) {
+            return;
+        }
+        handler.removeCallbacks(runnable);
     }
 
     public void postRunnable(Runnable runnable) {
@@ -43,10 +546,50 @@ public class DispatchQueue extends Thread {
     }
 
     public void postRunnable(Runnable runnable, long delay) {
-        try {
-            syncLatch.await();
-        } catch (Exception e) {
+        postRunnable(runnable, delay, null);
+    }
+
+    public void postRunnable(Runnable runnable, TaskGroup group) {
+        postRunnable(runnable, 0, group);
+    }
 
+    public void postRunnable(Runnable runnable, long delay, TaskGroup group) {
+        if (group != null && group.cancelled) {
+            notifyDropped(runnable);
+            return;
+        }
+        if (pooled) {
+            if (group == null) {
+                group = defaultGroup;
+            }
+            if (delay <= 0) {
+                enqueue(runnable, group);
+            } else {
+                DelayedTask task = new DelayedTask(runnable, group);
+                synchronized (sync) {
+                    if (recycled) {
+                        return;
+                    }
+                    delayedTasks.add(task);
+                    task.future = pool.schedule(task, delay, TimeUnit.MILLISECONDS);
+                }
+            }
+            return;
+        }
+        if (group != null) {
+            Runnable task = runnable;
+            TaskGroup taskGroup = group;
+            runnable = () -> {
+                if (!taskGroup.cancelled) {
+                    task.run();
+                } else {
+                    notifyDropped(task);
+                }
+            };
+        }
+        postedCount.incrementAndGet();
+        if (deferUntilReady(OPERATION_POST, runnable, null, delay)) {
+            return;
         }
         if (delay <= 0) {
             handler.post(runnable);
@@ -55,13 +598,75 @@ public class DispatchQueue extends Thread {
         }
     }
 
-    public void cleanupQueue() {
-        try {
-            syncLatch.await();
-            handler.removeCallbacksAndMessages(null);
-        } catch (Exception e) {
+    /**
+     * Posts all runnables as a single queue entry; they run back to back in list order.
+     * Runnables posted this way can't be cancelled one by one.
+     */
+    public void postRunnables(List<Runnable> runnables) {
+        if (runnables.isEmpty()) {
+            return;
+        }
+        if (runnables.size() == 1) {
+            postRunnable(runnables.get(0));
+        } else {
+            postRunnable(new BatchTask(runnables.toArray(new Runnable[0])));
+        }
+    }
 
+    /**
+     * Collects the runnable and posts everything collected during the current UI thread
+     * message (usually one frame) as one entry, see {@link #postRunnables(List)}. Callers
+     * should post all their work for this queue the same way, or direct posts may overtake
+     * collected ones.
+     */
+    public void postRunnableBatched(Runnable runnable) {
+        synchronized (frameBatchSync) {
+            frameBatch.add(runnable);
+            if (frameBatchScheduled) {
+                return;
+            }
+            frameBatchScheduled = true;
         }
+        AndroidUtilities.runOnUIThread(flushFrameBatchRunnable);
+    }
+
+    private void flushFrameBatch() {
+        ArrayList<Runnable> batch;
+        synchronized (frameBatchSync) {
+            batch = frameBatch;
+            frameBatch = new ArrayList<>(batch.size());
+            frameBatchScheduled = false;
+        }
+        postRunnables(batch);
+    }
+
+    @Override
+    public void execute(Runnable runnable) {
+        postRunnable(runnable, 0);
+    }
+
+    public void cleanupQueue() {
+        if (pooled) {
+            synchronized (sync) {
+                for (GroupTasks entry : groupTasks.values()) {
+                    unlink(entry);
+                    detach(entry.group);
+                }
+                groupTasks.clear();
+                pendingCount = 0;
+                for (int a = 0, N = delayedTasks.size(); a < N; a++) {
+                    DelayedTask task = delayedTasks.get(a);
+                    task.cancelled = true;
+                    task.future.cancel(false);
+                }
+                delayedTasks.clear();
+            }
+            return;
+        }
+        if (deferUntilReady(OPERATION_CLEANUP, null, null, 0)) {
+            return;
+        }
+        handler.removeCallbacksAndMessages(null);
     }
 
     public void handleMessage(Message inputMessage) {
@@ -69,19 +674,276 @@ public class DispatchQueue extends Thread {
     }
 
     public void recycle() {
+        synchronized (liveQueues) {
+            for (int a = liveQueues.size() - 1; a >= 0; a--) {
+                DispatchQueue queue = liveQueues.get(a).get();
+                if (queue == null || queue == this) {
+                    liveQueues.remove(a);
+                }
+            }
+        }
+        if (pooled) {
+            synchronized (sync) {
+                recycled = true;
+            }
+            cleanupQueue();
+            return;
+        }
+        if (deferUntilReady(OPERATION_QUIT, null, null, 0)) {
+            return;
+        }
         handler.getLooper().quit();
     }
 
-    @Override
-    public void run() {
+    private void enqueue(Runnable runnable, TaskGroup group) {
+        boolean dropped;
+        synchronized (sync) {
+            if (recycled) {
+                return;
+            }
+            GroupTasks entry = groupTasks.get(group);
+            if (entry == null) {
+                synchronized (group) {
+                    dropped = group.cancelled;
+                    if (!dropped) {
+                        group.queues.add(this);
+                    }
+                }
+                if (!dropped) {
+                    entry = new GroupTasks(group);
+                    groupTasks.put(group, entry);
+                    link(entry, group.priority);
+                }
+            } else {
+                dropped = false;
+            }
+            if (!dropped) {
+                entry.tasks.add(metricsEnabled ? new TimedTask(runnable, System.nanoTime()) : runnable);
+                pendingCount++;
+                postedCount.incrementAndGet();
+                if (draining) {
+                    return;
+                }
+                draining = true;
+            }
+        }
+        if (dropped) {
+            notifyDropped(runnable);
+            return;
+        }
+        pool.execute(drainRunnable);
+    }
+
+    private void drain() {
+        Thread current = Thread.currentThread();
+        int queuePriority = priority;
+        if (queuePriority != Thread.NORM_PRIORITY) {
+            current.setPriority(queuePriority);
+        }
+        try {
+            for (int a = 0; a < MAX_TASKS_PER_DRAIN; a++) {
+                Runnable runnable;
+                synchronized (sync) {
+                    runnable = pollTask();
+                    if (runnable == null) {
+                        draining = false;
+                        return;
+                    }
+                }
+                long startTime = runnable instanceof TimedTask ? System.nanoTime() : 0;
+                try {
+                    runnable.run();
+                } catch (Throwable e) {
+                    dispatchUncaughtException(e);
+                }
+                if (startTime != 0) {
+                    TimedTask task = (TimedTask) runnable;
+                    metrics.onTaskFinished(task.runnable, startTime - task.enqueueTime, System.nanoTime() - startTime);
+                }
+            }
+        } finally {
+            if (queuePriority != Thread.NORM_PRIORITY) {
+                current.setPriority(Thread.NORM_PRIORITY);
+            }
+        }
+        synchronized (sync) {
+            if (groupTasks.isEmpty()) {
+                draining = false;
+                return;
+            }
+        }
+        pool.execute(drainRunnable);
+    }
+
+    /**
+     * The pool would keep a failure of a posted runnable in its future, so it is handed
+     * to the uncaught exception handler here. It crashes the app just like an exception thrown
+     * on a Looper thread; if the handler returns, the queue keeps draining.
+     */
+    private static void dispatchUncaughtException(Throwable e) {
+        Thread thread = Thread.currentThread();
+        Thread.UncaughtExceptionHandler handler = thread.getUncaughtExceptionHandler();
+        if (handler != null) {
+            try {
+                handler.uncaughtException(thread, e);
+            } catch (Throwable ignore) {
+
+            }
+        }
+    }
+
+    private Runnable pollTask() {
+        for (int lane = 0; lane < PRIORITIES_COUNT; lane++) {
+            GroupTasks entry = laneHeads[lane];
+            if (entry == null) {
+                continue;
+            }
+            Runnable runnable = entry.tasks.poll();
+            pendingCount--;
+            unlink(entry);
+            if (entry.tasks.isEmpty()) {
+                groupTasks.remove(entry.group);
+                detach(entry.group);
+            } else {
+                link(entry, lane);
+            }
+            return runnable;
+        }
+        return null;
+    }
+
+    private void relinkGroup(TaskGroup group) {
+        synchronized (sync) {
+            GroupTasks entry = groupTasks.get(group);
+            if (entry != null) {
+                unlink(entry);
+                link(entry, group.priority);
+            }
+        }
+    }
+
+    private void dropGroup(TaskGroup group) {
+        GroupTasks entry;
+        synchronized (sync) {
+            entry = groupTasks.remove(group);
+            if (entry == null) {
+                return;
+            }
+            pendingCount -= entry.tasks.size();
+            unlink(entry);
+        }
+        Runnable runnable;
+        while ((runnable = entry.tasks.poll()) != null) {
+            notifyDropped(runnable);
+        }
+    }
+
+    private void detach(TaskGroup group) {
+        synchronized (group) {
+            group.queues.remove(this);
+        }
+    }
+
+    private void link(GroupTasks entry, int lane) {
+        lane = Math.max(0, Math.min(PRIORITIES_COUNT - 1, lane));
+        entry.lane = lane;
+        entry.prev = laneTails[lane];
+        entry.next = null;
+        if (laneTails[lane] != null) {
+            laneTails[lane].next = entry;
+        } else {
+            laneHeads[lane] = entry;
+        }
+        laneTails[lane] = entry;
+    }
+
+    private void unlink(GroupTasks entry) {
+        int lane = entry.lane;
+        if (lane < 0) {
+            return;
+        }
+        if (entry.prev != null) {
+            entry.prev.next = entry.next;
+        } else {
+            laneHeads[lane] = entry.next;
+        }
+        if (entry.next != null) {
+            entry.next.prev = entry.prev;
+        } else {
+            laneTails[lane] = entry.prev;
+        }
+        entry.prev = entry.next = null;
+        entry.lane = -1;
+    }
+
+    /**
+     * Until the looper thread is up, operations are appended to a lock-free buffer instead of
+     * waiting for it. Delays count from the original call. Once ready, a caller that finds
+     * buffered operations flushes them first so its own operation cannot overtake them.
+     * <p>
+     * Only Looper queues go through here. A pooled queue has no thread of its own to wait
+     * for: its posts go to its pool, which is usable as soon as it is created,
+     * so a pooled queue never blocks a caller on start-up in the first place.
+     */
+    private boolean deferUntilReady(int type, Runnable runnable, Message message, long delay) {
+        if (ready) {
+            if (pendingOperationsCount.get() != 0) {
+                flushPendingOperations();
+            }
+            return false;
+        }
+        pendingOperationsCount.incrementAndGet();
+        pendingOperations.add(new PendingOperation(type, runnable, message, delay > 0 ? SystemClock.uptimeMillis() + delay : 0));
+        if (ready) {
+            flushPendingOperations();
+        }
+        return true;
+    }
+
+    private void flushPendingOperations() {
+        synchronized (pendingOperations) {
+            PendingOperation operation;
+            while ((operation = pendingOperations.poll()) != null) {
+                switch (operation.type) {
+                    case OPERATION_POST:
+                        if (operation.uptime == 0) {
+                            handler.post(operation.runnable);
+                        } else {
+                            handler.postAtTime(operation.runnable, operation.uptime);
+                        }
+                        break;
+                    case OPERATION_MESSAGE:
+                        if (operation.uptime == 0) {
+                            handler.sendMessage(operation.message);
+                        } else {
+                            handler.sendMessageAtTime(operation.message, operation.uptime);
+                        }
+                        break;
+                    case OPERATION_CANCEL:
+                        handler.removeCallbacks(operation.runnable);
+                        break;
+                    case OPERATION_CLEANUP:
+                        handler.removeCallbacksAndMessages(null);
+                        break;
+                    case OPERATION_QUIT:
+                        handler.getLooper().quit();
+                        break;
+                }
+                pendingOperationsCount.decrementAndGet();
+            }
+        }
+    }
+
+    private void runLooper() {
         Looper.prepare();
         handler = new Handler() {
             @Override
             public void handleMessage(Message msg) {
-              this.handleMessage(msg);
+                DispatchQueue.this.handleMessage(msg);
             }
         };
-        syncLatch.countDown();
+        ready = true;
+        flushPendingOperations();
         Looper.loop();
     }
-}
\ No newline at end of file
+}
@@ -8,7 +8,9 @@ package com.example.custom;/*
 
 
 import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
+import android.content.res.Configuration;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.drawable.BitmapDrawable;
@@ -17,29 +19,48 @@ import android.net.Uri;
 import android.os.Build;
 import android.provider.MediaStore;
 import android.text.TextUtils;
+import android.view.Choreographer;
 import android.util.SparseArray;
 
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.InputStream;
 import java.io.RandomAccessFile;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 
 public class ImageLoader {
 
-    private HashMap<String, Integer> bitmapUseCounts = new HashMap<>();
+    private ImageUseCounts<BitmapDrawable> bitmapUseCounts;
     private LruCache<BitmapDrawable> memCache;
-    private HashMap<String, CacheImage> imageLoadingByUrl = new HashMap<>();
-    private HashMap<String, CacheImage> imageLoadingByKeys = new HashMap<>();
-    private SparseArray<CacheImage> imageLoadingByTag = new SparseArray<>();
+    private SoftBitmapCache softCache;
+    private int memCacheBaseSize;
+    private Runnable restoreCacheSizeRunnable = () -> {
+        setCacheSizes(1f, 0.5f);
+        BitmapPool.getInstance().trimMemory(0);
+    };
+    private HashMap<String, CacheImage> loadingRequests = new HashMap<>();
+    private SparseArray<ReceiverAttachment> loadingReceiversByTag = new SparseArray<>();
+    private HashMap<DispatchQueue.TaskGroup, ArrayList<CacheImage>> prefetchRequests = new HashMap<>();
     private HashMap<String, ThumbGenerateInfo> waitingForQualityThumb = new HashMap<>();
     private SparseArray<String> waitingForQualityThumbByTag = new SparseArray<>();
-    private DispatchQueue cacheOutQueue = new DispatchQueue("cacheOutQueue");
-    private DispatchQueue cacheThumbOutQueue = new DispatchQueue("cacheThumbOutQueue");
-    private DispatchQueue thumbGeneratingQueue = new DispatchQueue("thumbGeneratingQueue");
+    private DispatchQueue cacheOutQueue = new DispatchQueue("cacheOutQueue", true);
+    private DispatchQueue cacheThumbOutQueue = new DispatchQueue("cacheThumbOutQueue", true);
+    private DispatchQueue thumbGeneratingQueue = new DispatchQueue("thumbGeneratingQueue", true);
     private DispatchQueue imageLoadQueue = new DispatchQueue("imageLoadQueue");
+    private static int decodeParallelism = Math.max(1, Math.min(3, Runtime.getRuntime().availableProcessors() - 1));
+    private static int transformParallelism = 1;
+    private DispatchQueue[] decodeQueues;
+    private DispatchQueue[] transformQueues;
+    private final ArrayList<ArrayDeque<CacheOutTask>> waitingForDecoding = new ArrayList<>();
+    private int waitingForDecodingCount;
+    private int decodingTasksCount;
+    private int maxDecodingTasks;
+    private volatile DispatchQueue.TaskGroup currentLoadGroup = new DispatchQueue.TaskGroup(DispatchQueue.PRIORITY_VISIBLE);
+    private DispatchQueue.TaskGroup previousLoadGroup;
     private HashMap<String, String> replacedBitmaps = new HashMap<>();
     private ConcurrentHashMap<String, Float> fileProgresses = new ConcurrentHashMap<>();
     private HashMap<String, Integer> forceLoadingImages = new HashMap<>();
@@ -55,8 +76,8 @@ public class ImageLoader {
 
     private String ignoreRemoval = null;
 
-    private volatile long lastCacheOutTime = 0;
-    private int lastImageNum = 0;
+    private PublishController publishController = new PublishController();
+    private int lastImageNum = 1;
     private long lastProgressUpdateTime = 0;
 
     private File telegramPath = null;
@@ -71,167 +92,201 @@ public class ImageLoader {
     }
 
 
-    private class CacheOutTask implements Runnable {
+    /**
+     * Loads one image in four stages: {@link #run()} probes the file and decodes bounds on
+     * cacheOutQueue/cacheThumbOutQueue, then the bitmap is decoded on one of the decode
+     * queues, scaled on one of the transform queues and published on the UI thread. The
+     * decode and transform queue are picked by key, so tasks for one key keep their order.
+     */
+    private class CacheOutTask implements DispatchQueue.DroppableTask {
         private Thread runningThread;
         private final Object sync = new Object();
 
         private CacheImage cacheImage;
         private boolean isCancelled;
+        private DispatchQueue.TaskGroup group;
 
-        public CacheOutTask(CacheImage image) {
+        private final Runnable decodeRunnable = new DispatchQueue.DroppableTask() {
+            @Override
+            public void run() {
+                decode();
+            }
+
+            @Override
+            public void onDropped() {
+                onDecodingFinished();
+                CacheOutTask.this.onDropped();
+            }
+        };
+        private final Runnable transformRunnable = new DispatchQueue.DroppableTask() {
+            @Override
+            public void run() {
+                transform();
+            }
+
+            @Override
+            public void onDropped() {
+                onDecodingFinished();
+                CacheOutTask.this.onDropped();
+            }
+        };
+
+        private Long mediaId;
+        private boolean mediaIsVideo;
+        private Bitmap image;
+        private File cacheFileFinal;
+        private boolean canDeleteFile = true;
+        private boolean useNativeWebpLoader;
+        private String mediaThumbPath;
+        private BitmapFactory.Options opts;
+        private float w_filter;
+        private float h_filter;
+        private int blurType;
+        private boolean force8888;
+        private Drawable result;
+        private String diskCacheKey;
+        private boolean loadedFromDisk;
+
+        public CacheOutTask(CacheImage image, DispatchQueue.TaskGroup group) {
             cacheImage = image;
+            this.group = group;
         }
 
-        @Override
-        public void run() {
+        private boolean startStage() {
             synchronized (sync) {
                 runningThread = Thread.currentThread();
                 Thread.interrupted();
-                if (isCancelled) {
-                    return;
-                }
+                return !isCancelled;
             }
+        }
 
-            {
-                Long mediaId = null;
-                boolean mediaIsVideo = false;
-                Bitmap image = null;
-                boolean needInvert = false;
-                int orientation = 0;
-                File cacheFileFinal = cacheImage.finalFilePath;
-                byte[] secureDocumentHash;
-                boolean canDeleteFile = true;
-                boolean useNativeWebpLoader = false;
-
-                if (Build.VERSION.SDK_INT < 19) {
-                    RandomAccessFile randomAccessFile = null;
-                    try {
-                        randomAccessFile = new RandomAccessFile(cacheFileFinal, "r");
-                        byte[] bytes;
-                        if (cacheImage.imageType == ImageReceiver.TYPE_THUMB) {
-                            bytes = headerThumb;
-                        } else {
-                            bytes = header;
-                        }
-                        randomAccessFile.readFully(bytes, 0, bytes.length);
-                        String str = new String(bytes).toLowerCase();
-                        str = str.toLowerCase();
-                        if (str.startsWith("riff") && str.endsWith("webp")) {
-                            useNativeWebpLoader = true;
-                        }
-                        randomAccessFile.close();
-                    } catch (Exception e) {
-                    } finally {
-                        if (randomAccessFile != null) {
-                            try {
-                                randomAccessFile.close();
-                            } catch (Exception e) {
-                            }
-                        }
+        private void finishStage() {
+            synchronized (sync) {
+                runningThread = null;
+            }
+            Thread.interrupted();
+        }
+
+        @Override
+        public void run() {
+            if (!startStage()) {
+                return;
+            }
+            probe();
+            finishStage();
+            startDecoding(this);
+        }
+
+        private void probe() {
+            cacheFileFinal = cacheImage.finalFilePath;
+
+            if (cacheImage.imageLocation.path != null) {
+                String location = cacheImage.imageLocation.path;
+                if (location.startsWith("thumb://")) {
+                    int idx = location.indexOf(":", 8);
+                    if (idx >= 0) {
+                        mediaId = Long.parseLong(location.substring(8, idx));
+                        mediaIsVideo = false;
+                        mediaThumbPath = location.substring(idx + 1);
+                    }
+                    canDeleteFile = false;
+                } else if (location.startsWith("vthumb://")) {
+                    int idx = location.indexOf(":", 9);
+                    if (idx >= 0) {
+                        mediaId = Long.parseLong(location.substring(9, idx));
+                        mediaIsVideo = true;
                     }
+                    canDeleteFile = false;
+                } else if (!location.startsWith("http")) {
+                    canDeleteFile = false;
                 }
+            }
 
-                String mediaThumbPath = null;
-                if (cacheImage.imageLocation.path != null) {
-                    String location = cacheImage.imageLocation.path;
-                    if (location.startsWith("thumb://")) {
-                        int idx = location.indexOf(":", 8);
-                        if (idx >= 0) {
-                            mediaId = Long.parseLong(location.substring(8, idx));
-                            mediaIsVideo = false;
-                            mediaThumbPath = location.substring(idx + 1);
-                        }
-                        canDeleteFile = false;
-                    } else if (location.startsWith("vthumb://")) {
-                        int idx = location.indexOf(":", 9);
-                        if (idx >= 0) {
-                            mediaId = Long.parseLong(location.substring(9, idx));
-                            mediaIsVideo = true;
+            if (mediaId != null && cacheFileFinal != null) {
+                diskCacheKey = ThumbDiskCache.getKey(mediaId, mediaIsVideo, cacheImage.filter, cacheFileFinal.lastModified());
+                image = ThumbDiskCache.getInstance().get(diskCacheKey);
+                if (image != null) {
+                    loadedFromDisk = true;
+                    return;
+                }
+            }
+
+            if (Build.VERSION.SDK_INT < 19) {
+                RandomAccessFile randomAccessFile = null;
+                try {
+                    randomAccessFile = new RandomAccessFile(cacheFileFinal, "r");
+                    byte[] bytes;
+                    if (cacheImage.imageType == ImageReceiver.TYPE_THUMB) {
+                        bytes = headerThumb;
+                    } else {
+                        bytes = header;
+                    }
+                    randomAccessFile.readFully(bytes, 0, bytes.length);
+                    String str = new String(bytes).toLowerCase();
+                    str = str.toLowerCase();
+                    if (str.startsWith("riff") && str.endsWith("webp")) {
+                        useNativeWebpLoader = true;
+                    }
+                    randomAccessFile.close();
+                } catch (Exception e) {
+                } finally {
+                    if (randomAccessFile != null) {
+                        try {
+                            randomAccessFile.close();
+                        } catch (Exception e) {
                         }
-                        canDeleteFile = false;
-                    } else if (!location.startsWith("http")) {
-                        canDeleteFile = false;
                     }
                 }
+            }
 
-                BitmapFactory.Options opts = new BitmapFactory.Options();
-                opts.inSampleSize = 1;
+            opts = new BitmapFactory.Options();
+            opts.inSampleSize = 1;
 
-                if (Build.VERSION.SDK_INT < 21) {
-                    opts.inPurgeable = true;
-                }
+            if (Build.VERSION.SDK_INT < 21) {
+                opts.inPurgeable = true;
+            }
 
-                float w_filter = 0;
-                float h_filter = 0;
-                int blurType = 0;
-                boolean checkInversion = false;
-                boolean force8888 = canForce8888;
-                try {
-                    if (cacheImage.filter != null) {
-                        String[] args = cacheImage.filter.split("_");
-                        if (args.length >= 2) {
-                            w_filter = Float.parseFloat(args[0]) * AndroidUtilities.density;
-                            h_filter = Float.parseFloat(args[1]) * AndroidUtilities.density;
-                        }
-                        if (cacheImage.filter.contains("b2")) {
-                            blurType = 3;
-                        } else if (cacheImage.filter.contains("b1")) {
-                            blurType = 2;
-                        } else if (cacheImage.filter.contains("b")) {
-                            blurType = 1;
-                        }
-                        if (cacheImage.filter.contains("i")) {
-                            checkInversion = true;
-                        }
-                        if (cacheImage.filter.contains("f")) {
-                            force8888 = true;
+            boolean checkInversion = false;
+            force8888 = canForce8888;
+            try {
+                if (cacheImage.filter != null) {
+                    String[] args = cacheImage.filter.split("_");
+                    if (args.length >= 2) {
+                        w_filter = Float.parseFloat(args[0]) * AndroidUtilities.density;
+                        h_filter = Float.parseFloat(args[1]) * AndroidUtilities.density;
+                    }
+                    if (cacheImage.filter.contains("b2")) {
+                        blurType = 3;
+                    } else if (cacheImage.filter.contains("b1")) {
+                        blurType = 2;
+                    } else if (cacheImage.filter.contains("b")) {
+                        blurType = 1;
+                    }
+                    if (cacheImage.filter.contains("i")) {
+                        checkInversion = true;
+                    }
+                    if (cacheImage.filter.contains("f")) {
+                        force8888 = true;
+                    }
+                    if (!useNativeWebpLoader && w_filter != 0 && h_filter != 0) {
+                        opts.inJustDecodeBounds = true;
+
+                        if (mediaId != null) {
+                            getMediaThumbnail();
                         }
-                        if (!useNativeWebpLoader && w_filter != 0 && h_filter != 0) {
-                            opts.inJustDecodeBounds = true;
-
-                            if (mediaId != null && mediaThumbPath == null) {
-                                if (mediaIsVideo) {
-                                    MediaStore.Video.Thumbnails.getThumbnail(ApplicationLoader.applicationContext.getContentResolver(), mediaId, MediaStore.Video.Thumbnails.MINI_KIND, opts);
-                                } else {
-                                    MediaStore.Images.Thumbnails.getThumbnail(ApplicationLoader.applicationContext.getContentResolver(), mediaId, MediaStore.Images.Thumbnails.MINI_KIND, opts);
-                                }
-                            }
-                            float photoW = opts.outWidth;
-                            float photoH = opts.outHeight;
-                            float scaleFactor;
-                            if (w_filter >= h_filter && photoW > photoH) {
-                                scaleFactor = Math.max(photoW / w_filter, photoH / h_filter);
-                            } else {
-                                scaleFactor = Math.min(photoW / w_filter, photoH / h_filter);
-                            }
-                            if (scaleFactor < 1.2f) {
-                                scaleFactor = 1;
-                            }
-                            opts.inJustDecodeBounds = false;
-                            if (scaleFactor > 1.0f && (photoW > w_filter || photoH > h_filter)) {
-                                int sample = 1;
-                                do {
-                                    sample *= 2;
-                                } while (sample * 2 < scaleFactor);
-                                opts.inSampleSize = sample;
-                            } else {
-                                opts.inSampleSize = (int) scaleFactor;
-                            }
+                        float photoW = opts.outWidth;
+                        float photoH = opts.outHeight;
+                        float scaleFactor;
+                        if (w_filter >= h_filter && photoW > photoH) {
+                            scaleFactor = Math.max(photoW / w_filter, photoH / h_filter);
+                        } else {
+                            scaleFactor = Math.min(photoW / w_filter, photoH / h_filter);
                         }
-                    } else if (mediaThumbPath != null) {
-                        opts.inJustDecodeBounds = true;
-                        opts.inPreferredConfig = force8888 ? Bitmap.Config.ARGB_8888 : Bitmap.Config.RGB_565;
-                        FileInputStream is = new FileInputStream(cacheFileFinal);
-                        image = BitmapFactory.decodeStream(is, null, opts);
-                        is.close();
-                        int photoW2 = opts.outWidth;
-                        int photoH2 = opts.outHeight;
-                        opts.inJustDecodeBounds = false;
-                        float scaleFactor = Math.max(photoW2 / 200, photoH2 / 200);
-                        if (scaleFactor < 1) {
+                        if (scaleFactor < 1.2f) {
                             scaleFactor = 1;
                         }
-                        if (scaleFactor > 1.0f) {
+                        opts.inJustDecodeBounds = false;
+                        if (scaleFactor > 1.0f && (photoW > w_filter || photoH > h_filter)) {
                             int sample = 1;
                             do {
                                 sample *= 2;
@@ -241,55 +296,45 @@ public class ImageLoader {
                             opts.inSampleSize = (int) scaleFactor;
                         }
                     }
-                } catch (Throwable e) {
+                } else if (mediaThumbPath != null) {
+                    opts.inJustDecodeBounds = true;
+                    opts.inPreferredConfig = force8888 ? Bitmap.Config.ARGB_8888 : Bitmap.Config.RGB_565;
+                    FileInputStream is = new FileInputStream(cacheFileFinal);
+                    image = BitmapFactory.decodeStream(is, null, opts);
+                    is.close();
+                    int photoW2 = opts.outWidth;
+                    int photoH2 = opts.outHeight;
+                    opts.inJustDecodeBounds = false;
+                    float scaleFactor = Math.max(photoW2 / 200, photoH2 / 200);
+                    if (scaleFactor < 1) {
+                        scaleFactor = 1;
+                    }
+                    if (scaleFactor > 1.0f) {
+                        int sample = 1;
+                        do {
+                            sample *= 2;
+                        } while (sample * 2 < scaleFactor);
+                        opts.inSampleSize = sample;
+                    } else {
+                        opts.inSampleSize = (int) scaleFactor;
+                    }
                 }
+            } catch (Throwable e) {
+            }
+        }
 
-                if (cacheImage.imageType == ImageReceiver.TYPE_THUMB) {
-                    try {
-                        lastCacheOutTime = System.currentTimeMillis();
-                        synchronized (sync) {
-                            if (isCancelled) {
-                                return;
-                            }
-                        }
-
-                        if (image == null) {
-                            if (cacheFileFinal.length() == 0 || cacheImage.filter == null) {
-                                cacheFileFinal.delete();
-                            }
-                        } else {
-                            if (cacheImage.filter != null) {
-                                float bitmapW = image.getWidth();
-                                float bitmapH = image.getHeight();
-                                if (!opts.inPurgeable && w_filter != 0 && bitmapW != w_filter && bitmapW > w_filter + 20) {
-                                    float scaleFactor = bitmapW / w_filter;
-                                    Bitmap scaledBitmap = Bitmaps.createScaledBitmap(image, (int) w_filter, (int) (bitmapH / scaleFactor), true);
-                                    if (image != scaledBitmap) {
-                                        image.recycle();
-                                        image = scaledBitmap;
-                                    }
-                                }
-                            }
-
-                        }
-                    } catch (Throwable e) {
+        private void decode() {
+            if (!startStage()) {
+                onDecodingFinished();
+                return;
+            }
+            boolean cancelled = false;
+            if (cacheImage.imageType != ImageReceiver.TYPE_THUMB && !loadedFromDisk) {
+                try {
+                    synchronized (sync) {
+                        cancelled = isCancelled;
                     }
-                } else {
-                    try {
-                        int delay = 20;
-                        if (mediaId != null) {
-                            delay = 0;
-                        }
-                        if (delay != 0 && lastCacheOutTime != 0 && lastCacheOutTime > System.currentTimeMillis() - delay && Build.VERSION.SDK_INT < 21) {
-                            Thread.sleep(delay);
-                        }
-                        lastCacheOutTime = System.currentTimeMillis();
-                        synchronized (sync) {
-                            if (isCancelled) {
-                                return;
-                            }
-                        }
-
+                    if (!cancelled) {
                         if (force8888 || cacheImage.filter == null || blurType != 0 || cacheImage.imageLocation.path != null) {
                             opts.inPreferredConfig = Bitmap.Config.ARGB_8888;
                         } else {
@@ -297,73 +342,137 @@ public class ImageLoader {
                         }
 
                         opts.inDither = false;
-                        if (mediaId != null && mediaThumbPath == null) {
-                            if (mediaIsVideo) {
-                                image = MediaStore.Video.Thumbnails.getThumbnail(ApplicationLoader.applicationContext.getContentResolver(), mediaId, MediaStore.Video.Thumbnails.MINI_KIND, opts);
-                            } else {
-                                image = MediaStore.Images.Thumbnails.getThumbnail(ApplicationLoader.applicationContext.getContentResolver(), mediaId, MediaStore.Images.Thumbnails.MINI_KIND, opts);
-                            }
+                        if (mediaId != null) {
+                            image = decodeMediaThumbnail();
                         }
-                        if (image == null) {
-                            if (canDeleteFile && (cacheFileFinal.length() == 0 || cacheImage.filter == null)) {
-                                cacheFileFinal.delete();
-                            }
-                        } else {
-                            boolean blured = false;
-                            if (cacheImage.filter != null) {
-                                float bitmapW = image.getWidth();
-                                float bitmapH = image.getHeight();
-                                if (!opts.inPurgeable && w_filter != 0 && bitmapW != w_filter && bitmapW > w_filter + 20) {
-                                    Bitmap scaledBitmap;
-                                    if (bitmapW > bitmapH && w_filter > h_filter) {
-                                        float scaleFactor = bitmapW / w_filter;
-                                        scaledBitmap = Bitmaps.createScaledBitmap(image, (int) w_filter, (int) (bitmapH / scaleFactor), true);
-                                    } else {
-                                        float scaleFactor = bitmapH / h_filter;
-                                        scaledBitmap = Bitmaps.createScaledBitmap(image, (int) (bitmapW / scaleFactor), (int) h_filter, true);
-                                    }
-                                    if (image != scaledBitmap) {
-                                        image.recycle();
-                                        image = scaledBitmap;
-                                    }
-                                }
-                            }
+                    }
+                } catch (Throwable ignore) {
 
-                        }
-                    } catch (Throwable ignore) {
+                }
+            }
+            finishStage();
+            synchronized (sync) {
+                cancelled |= isCancelled;
+            }
+            if (cancelled) {
+                onDecodingFinished();
+                return;
+            }
+            getStageQueue(transformQueues, cacheImage.key).postRunnable(transformRunnable, group);
+        }
 
-                    }
+        private Bitmap decodeMediaThumbnail() {
+            Bitmap reuse = null;
+            if (!opts.inPurgeable && opts.outWidth > 0 && opts.outHeight > 0) {
+                int sample = Math.max(1, opts.inSampleSize);
+                reuse = BitmapPool.getInstance().get((opts.outWidth + sample - 1) / sample, (opts.outHeight + sample - 1) / sample, opts.inPreferredConfig);
+                opts.inMutable = true;
+            }
+            opts.inBitmap = reuse;
+            Bitmap bitmap = null;
+            try {
+                bitmap = getMediaThumbnail();
+            } catch (IllegalArgumentException ignore) {
+
+            }
+            opts.inBitmap = null;
+            if (reuse != null && bitmap != reuse) {
+                if (bitmap == null) {
+                    bitmap = getMediaThumbnail();
                 }
-                Thread.interrupted();
+                BitmapPool.getInstance().put(reuse);
+            }
+            return bitmap;
+        }
+
+        private Bitmap getMediaThumbnail() {
+            if (mediaThumbPath != null) {
+                return BitmapFactory.decodeFile(mediaThumbPath, opts);
+            } else if (mediaIsVideo) {
+                return MediaStore.Video.Thumbnails.getThumbnail(ApplicationLoader.applicationContext.getContentResolver(), mediaId, MediaStore.Video.Thumbnails.MINI_KIND, opts);
+            } else {
+                return MediaStore.Images.Thumbnails.getThumbnail(ApplicationLoader.applicationContext.getContentResolver(), mediaId, MediaStore.Images.Thumbnails.MINI_KIND, opts);
+            }
+        }
 
-                onPostExecute(image != null ? new BitmapDrawable(image) : null);
+        private void transform() {
+            if (!startStage()) {
+                onDecodingFinished();
+                return;
+            }
+            try {
+                if (image == null) {
+                    if ((canDeleteFile || cacheImage.imageType == ImageReceiver.TYPE_THUMB) && (cacheFileFinal.length() == 0 || cacheImage.filter == null)) {
+                        cacheFileFinal.delete();
+                    }
+                } else if (cacheImage.filter != null && !loadedFromDisk) {
+                    float bitmapW = image.getWidth();
+                    float bitmapH = image.getHeight();
+                    if (!opts.inPurgeable && w_filter != 0 && bitmapW != w_filter && bitmapW > w_filter + 20) {
+                        Bitmap scaledBitmap;
+                        if (cacheImage.imageType == ImageReceiver.TYPE_THUMB || bitmapW > bitmapH && w_filter > h_filter) {
+                            float scaleFactor = bitmapW / w_filter;
+                            scaledBitmap = Bitmaps.createScaledBitmap(image, (int) w_filter, (int) (bitmapH / scaleFactor), true);
+                        } else {
+                            float scaleFactor = bitmapH / h_filter;
+                            scaledBitmap = Bitmaps.createScaledBitmap(image, (int) (bitmapW / scaleFactor), (int) h_filter, true);
+                        }
+                        if (image != scaledBitmap) {
+                            BitmapPool.getInstance().put(image);
+                            image = scaledBitmap;
+                        }
+                    }
+                }
+                if (!loadedFromDisk && image != null && diskCacheKey != null) {
+                    ThumbDiskCache.getInstance().put(diskCacheKey, image);
+                }
+            } catch (Throwable ignore) {
 
             }
+            finishStage();
+
+            onPostExecute(image != null ? new BitmapDrawable(image) : null);
         }
 
         private void onPostExecute(final Drawable drawable) {
-            AndroidUtilities.runOnUIThread(() -> {
+            result = drawable;
+            publishController.enqueue(this);
+        }
+
+        private void publish() {
+            onDecodingFinished();
+            Drawable drawable = result;
+            result = null;
+            {
                 Drawable toSet = null;
                 String decrementKey = null;
                if (drawable instanceof BitmapDrawable) {
                     BitmapDrawable bitmapDrawable = (BitmapDrawable) drawable;
-                    toSet = memCache.get(cacheImage.key);
-                    if (toSet == null) {
-                        memCache.put(cacheImage.key, bitmapDrawable);
-                        toSet = bitmapDrawable;
-                    } else {
-                        Bitmap image = bitmapDrawable.getBitmap();
-                        image.recycle();
-                    }
-                    if (toSet != null) {
+                    synchronized (bitmapUseCounts) {
+                        toSet = restoreFromMemCache(cacheImage.key);
+                        if (toSet == null) {
+                            memCache.put(cacheImage.key, bitmapDrawable);
+                            toSet = bitmapDrawable;
+                        } else {
+                            BitmapPool.getInstance().put(bitmapDrawable.getBitmap());
+                        }
                         incrementUseCount(cacheImage.key);
                         decrementKey = cacheImage.key;
                     }
                 }
                 final Drawable toSetFinal = toSet;
                 final String decrementKetFinal = decrementKey;
-                imageLoadQueue.postRunnable(() -> cacheImage.setImageAndClear(toSetFinal, decrementKetFinal));
-            });
+                imageLoadQueue.postRunnableBatched(() -> cacheImage.setImageAndClear(toSetFinal, decrementKetFinal));
+            }
+        }
+
+        /**
+         * The group was cancelled before a stage could run. Drops the request, so a later
+         * request for the same key starts a new load instead of waiting for this one.
+         */
+        @Override
+        public void onDropped() {
+            imageLoadQueue.postRunnableBatched(() -> cacheImage.setImageAndClear(null, null));
         }
 
         public void cancel() {
@@ -380,6 +489,70 @@ public class ImageLoader {
         }
     }
 
+    /**
+     * Hands decoded images to the UI thread a few per frame. The budget grows by one after
+     * each smooth frame and halves after a janky one, so publishing runs at full speed while
+     * the UI is idle and backs off while it drops frames. Tasks count against the decoding
+     * limit until published, so a backed up UI thread also slows the decoders down.
+     */
+    private class PublishController implements Choreographer.FrameCallback {
+
+        private static final long FRAME_TIME = 16666667;
+        private static final int MAX_PUBLISHES_PER_FRAME = 16;
+
+        private final ArrayDeque<CacheOutTask> pending = new ArrayDeque<>();
+        private boolean scheduled;
+        private int publishesPerFrame = 4;
+        private long lastFrameTime;
+        private final Runnable scheduleRunnable = () -> Choreographer.getInstance().postFrameCallback(this);
+
+        private void enqueue(CacheOutTask task) {
+            synchronized (pending) {
+                pending.add(task);
+                if (scheduled) {
+                    return;
+                }
+                scheduled = true;
+            }
+            AndroidUtilities.runOnUIThread(scheduleRunnable);
+        }
+
+        public int getPublishesPerFrame() {
+            return publishesPerFrame;
+        }
+
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            if (lastFrameTime != 0) {
+                long frameTime = frameTimeNanos - lastFrameTime;
+                if (frameTime > FRAME_TIME * 3 / 2) {
+                    publishesPerFrame = Math.max(1, publishesPerFrame / 2);
+                } else if (frameTime < FRAME_TIME * 6 / 5) {
+                    publishesPerFrame = Math.min(MAX_PUBLISHES_PER_FRAME, publishesPerFrame + 1);
+                }
+            }
+            for (int a = 0; a < publishesPerFrame; a++) {
+                CacheOutTask task;
+                synchronized (pending) {
+                    task = pending.poll();
+                }
+                if (task == null) {
+                    break;
+                }
+                task.publish();
+            }
+            synchronized (pending) {
+                if (pending.isEmpty()) {
+                    scheduled = false;
+                    lastFrameTime = 0;
+                    return;
+                }
+            }
+            lastFrameTime = frameTimeNanos;
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+    }
+
     private class CacheImage {
 
         protected String key;
@@ -401,109 +574,108 @@ public class ImageLoader {
         protected File encryptionKeyPath;
 
         protected CacheOutTask cacheTask;
+        protected DispatchQueue cacheQueue;
+        protected DispatchQueue.TaskGroup prefetchGroup;
 
-        protected ArrayList<ImageReceiver> imageReceiverArray = new ArrayList<>();
-        protected ArrayList<Integer> imageReceiverGuidsArray = new ArrayList<>();
-        protected ArrayList<String> keys = new ArrayList<>();
-        protected ArrayList<String> filters = new ArrayList<>();
-        protected ArrayList<Integer> imageTypes = new ArrayList<>();
-
-        public void addImageReceiver(ImageReceiver imageReceiver, String key, String filter, int type, int guid) {
-            int index = imageReceiverArray.indexOf(imageReceiver);
-            if (index >= 0) {
-                imageReceiverGuidsArray.set(index, guid);
-                return;
-            }
-            imageReceiverArray.add(imageReceiver);
-            imageReceiverGuidsArray.add(guid);
-            keys.add(key);
-            filters.add(filter);
-            imageTypes.add(type);
-            imageLoadingByTag.put(imageReceiver.getTag(type), this);
-        }
+        protected ArrayList<ReceiverAttachment> receivers = new ArrayList<>();
 
-        public void replaceImageReceiver(ImageReceiver imageReceiver, String key, String filter, int type, int guid) {
-            int index = imageReceiverArray.indexOf(imageReceiver);
-            if (index == -1) {
-                return;
-            }
-            if (imageTypes.get(index) != type) {
-                index = imageReceiverArray.subList(index + 1, imageReceiverArray.size()).indexOf(imageReceiver);
-                if (index == -1) {
+        public void addImageReceiver(ImageReceiver imageReceiver, int type, int guid) {
+            int tag = imageReceiver.getTag(type);
+            ReceiverAttachment attachment = loadingReceiversByTag.get(tag);
+            if (attachment != null) {
+                if (attachment.owner == this) {
+                    attachment.guid = guid;
                     return;
                 }
+                attachment.owner.removeImageReceiver(attachment);
             }
-            imageReceiverGuidsArray.set(index, guid);
-            keys.set(index, key);
-            filters.set(index, filter);
+            attachment = new ReceiverAttachment(imageReceiver, tag, type);
+            attachment.guid = guid;
+            attachment.owner = this;
+            attachment.index = receivers.size();
+            receivers.add(attachment);
+            loadingReceiversByTag.put(tag, attachment);
         }
 
-        public void removeImageReceiver(ImageReceiver imageReceiver) {
-            int currentImageType = imageType;
-            for (int a = 0; a < imageReceiverArray.size(); a++) {
-                ImageReceiver obj = imageReceiverArray.get(a);
-                if (obj == null || obj == imageReceiver) {
-                    imageReceiverArray.remove(a);
-                    imageReceiverGuidsArray.remove(a);
-                    keys.remove(a);
-                    filters.remove(a);
-                    currentImageType = imageTypes.remove(a);
-                    if (obj != null) {
-                        imageLoadingByTag.remove(obj.getTag(currentImageType));
-                    }
-                    a--;
-                }
+        public void removeImageReceiver(ReceiverAttachment attachment) {
+            if (attachment.owner != this) {
+                return;
             }
-            if (imageReceiverArray.isEmpty()) {
+            ReceiverAttachment last = receivers.remove(receivers.size() - 1);
+            if (last != attachment) {
+                receivers.set(attachment.index, last);
+                last.index = attachment.index;
+            }
+            attachment.owner = null;
+            loadingReceiversByTag.remove(attachment.tag);
+            if (receivers.isEmpty()) {
                 if (cacheTask != null) {
-                    if (currentImageType == ImageReceiver.TYPE_THUMB) {
-                        cacheThumbOutQueue.cancelRunnable(cacheTask);
-                    } else {
-                        cacheOutQueue.cancelRunnable(cacheTask);
-                    }
+                    cacheQueue.cancelRunnable(cacheTask);
                     cacheTask.cancel();
                     cacheTask = null;
                 }
-                if (url != null) {
-                    imageLoadingByUrl.remove(url);
-                }
-                if (key != null) {
-                    imageLoadingByKeys.remove(key);
+                if (key != null && loadingRequests.get(key) == this) {
+                    loadingRequests.remove(key);
                 }
+                removeFromPrefetch();
             }
         }
 
         public void setImageAndClear(final Drawable image, String decrementKey) {
+            final ReceiverAttachment[] finalReceivers = receivers.toArray(new ReceiverAttachment[0]);
             if (image != null) {
-                final ArrayList<ImageReceiver> finalImageReceiverArray = new ArrayList<>(imageReceiverArray);
-                final ArrayList<Integer> finalImageReceiverGuidsArray = new ArrayList<>(imageReceiverGuidsArray);
                 AndroidUtilities.runOnUIThread(() -> {
-                    {
-                        for (int a = 0; a < finalImageReceiverArray.size(); a++) {
-                            ImageReceiver imgView = finalImageReceiverArray.get(a);
-                            imgView.setImageBitmapByKey(image, key, imageTypes.get(a), false, finalImageReceiverGuidsArray.get(a));
-                        }
+                    for (int a = 0; a < finalReceivers.length; a++) {
+                        ReceiverAttachment attachment = finalReceivers[a];
+                        attachment.imageReceiver.setImageBitmapByKey(image, key, attachment.type, false, attachment.guid);
                     }
                     if (decrementKey != null) {
                         decrementUseCount(decrementKey);
                     }
                 });
             }
-            for (int a = 0; a < imageReceiverArray.size(); a++) {
-                ImageReceiver imageReceiver = imageReceiverArray.get(a);
-                imageLoadingByTag.remove(imageReceiver.getTag(imageType));
+            for (int a = 0; a < finalReceivers.length; a++) {
+                finalReceivers[a].owner = null;
+                loadingReceiversByTag.remove(finalReceivers[a].tag);
             }
-            imageReceiverArray.clear();
-            imageReceiverGuidsArray.clear();
-            if (url != null) {
-                imageLoadingByUrl.remove(url);
+            receivers.clear();
+            if (key != null && loadingRequests.get(key) == this) {
+                loadingRequests.remove(key);
             }
-            if (key != null) {
-                imageLoadingByKeys.remove(key);
+            removeFromPrefetch();
+        }
+
+        private void removeFromPrefetch() {
+            if (prefetchGroup != null) {
+                ArrayList<CacheImage> requests = prefetchRequests.get(prefetchGroup);
+                if (requests != null) {
+                    requests.remove(this);
+                }
+                prefetchGroup = null;
             }
         }
     }
 
+    /**
+     * One receiver waiting for a {@link CacheImage}. It knows its position in the owner's
+     * receiver list, so detaching swaps the last entry in and takes O(1).
+     */
+    private static class ReceiverAttachment {
+
+        private final ImageReceiver imageReceiver;
+        private final int tag;
+        private final int type;
+        private int guid;
+        private CacheImage owner;
+        private int index;
+
+        private ReceiverAttachment(ImageReceiver imageReceiver, int tag, int type) {
+            this.imageReceiver = imageReceiver;
+            this.tag = tag;
+            this.type = type;
+        }
+    }
+
     private static volatile ImageLoader Instance = null;
 
     public static ImageLoader getInstance() {
@@ -519,8 +691,30 @@ public class ImageLoader {
         return localInstance;
     }
 
+    /**
+     * Sets how many decode and transform queues the loader creates. Only takes effect if
+     * called before the first {@link #getInstance()}.
+     */
+    public static void setPipelineParallelism(int decode, int transform) {
+        decodeParallelism = Math.max(1, decode);
+        transformParallelism = Math.max(1, transform);
+    }
+
     public ImageLoader() {
         thumbGeneratingQueue.setPriority(Thread.MIN_PRIORITY);
+        for (int a = DispatchQueue.PRIORITY_VISIBLE; a <= DispatchQueue.PRIORITY_BACKGROUND; a++) {
+            waitingForDecoding.add(new ArrayDeque<>());
+        }
+        ScheduledThreadPoolExecutor decodePool = DispatchQueue.createPool("ImageDecodePool", decodeParallelism + transformParallelism);
+        decodeQueues = new DispatchQueue[decodeParallelism];
+        for (int a = 0; a < decodeQueues.length; a++) {
+            decodeQueues[a] = new DispatchQueue("decodeQueue" + a, decodePool);
+        }
+        transformQueues = new DispatchQueue[transformParallelism];
+        for (int a = 0; a < transformQueues.length; a++) {
+            transformQueues[a] = new DispatchQueue("transformQueue" + a, decodePool);
+        }
+        maxDecodingTasks = (decodeParallelism + transformParallelism) * 2;
 
         int memoryClass = ((ActivityManager) ApplicationLoader.applicationContext.getSystemService(Context.ACTIVITY_SERVICE)).getMemoryClass();
         int maxSize;
@@ -529,9 +723,11 @@ public class ImageLoader {
         } else {
             maxSize = 15;
         }
-        int cacheSize = Math.min(maxSize, memoryClass / 7) * 1024 * 1024;
+        int cacheSize = memCacheBaseSize = Math.min(maxSize, memoryClass / 7) * 1024 * 1024;
+        BitmapPool.getInstance().setMaxSize(cacheSize / 4);
+        softCache = new SoftBitmapCache(cacheSize / 2);
 
-        memCache = new LruCache<BitmapDrawable>(cacheSize) {
+        memCache = new LruCache<BitmapDrawable>(cacheSize, LruCache.POLICY_TINY_LFU) {
             @Override
             protected int sizeOf(String key, BitmapDrawable value) {
                 return value.getBitmap().getByteCount();
@@ -539,21 +735,149 @@ public class ImageLoader {
 
             @Override
             protected void entryRemoved(boolean evicted, String key, final BitmapDrawable oldValue, BitmapDrawable newValue) {
-                if (ignoreRemoval != null && ignoreRemoval.equals(key)) {
+                if (!evicted || ignoreRemoval != null && ignoreRemoval.equals(key)) {
                     return;
                 }
-                final Integer count = bitmapUseCounts.get(key);
-                if (count == null || count == 0) {
-                    Bitmap b = oldValue.getBitmap();
-                    if (!b.isRecycled()) {
-                        b.recycle();
-                    }
-                }
+                bitmapUseCounts.onEvicted(key, oldValue);
             }
         };
+        bitmapUseCounts = new ImageUseCounts<>(new ImageUseCounts.Tiers<BitmapDrawable>() {
+            @Override
+            public boolean contains(String key) {
+                return memCache.contains(key);
+            }
+
+            @Override
+            public void demote(String key, BitmapDrawable value) {
+                softCache.put(key, value, value.getBitmap().getByteCount());
+            }
+        });
+
+        ApplicationLoader.applicationContext.registerComponentCallbacks(new ComponentCallbacks2() {
+            @Override
+            public void onTrimMemory(int level) {
+                AndroidUtilities.runOnUIThread(() -> onTrimMemoryLevel(level));
+            }
+
+            @Override
+            public void onConfigurationChanged(Configuration newConfig) {
+
+            }
+
+            @Override
+            public void onLowMemory() {
+                AndroidUtilities.runOnUIThread(() -> onTrimMemoryLevel(ComponentCallbacks2.TRIM_MEMORY_COMPLETE));
+            }
+        });
+    }
+
+    /**
+     * Shrinks both memory tiers and the bitmap pool for the given trim level. The soft tier
+     * goes first, since anything in it is only kept for a possible scroll back, and the pool is
+     * emptied when the process is about to be killed. While the system is under pressure the
+     * reduced budgets stay; full ones come back a minute after a later non-critical level.
+     */
+    private void onTrimMemoryLevel(int level) {
+        boolean critical;
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            setCacheSizes(0.25f, 0);
+            critical = true;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            setCacheSizes(0.5f, 0);
+            critical = level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            setCacheSizes(0.75f, 0.25f);
+            critical = true;
+        } else {
+            setCacheSizes(1f, 0.25f);
+            critical = false;
+        }
+        BitmapPool.getInstance().trimMemory(level);
+        AndroidUtilities.cancelRunOnUIThread(restoreCacheSizeRunnable);
+        if (!critical) {
+            AndroidUtilities.runOnUIThread(restoreCacheSizeRunnable, 60000);
+        }
+    }
+
+    private void setCacheSizes(float strongFraction, float softFraction) {
+        softCache.setMaxSize((int) (memCacheBaseSize * softFraction));
+        memCache.resize(Math.max(1, (int) (memCacheBaseSize * strongFraction)));
+    }
+
+    /**
+     * Looks {@code key} up in memCache and, failing that, moves the image back from the soft
+     * tier. Only for the load path: putting it back may evict other entries. The move happens
+     * under the use count lock, so an eviction cannot demote the image while it is put back.
+     */
+    private BitmapDrawable restoreFromMemCache(String key) {
+        BitmapDrawable drawable = memCache.get(key);
+        if (drawable != null) {
+            return drawable;
+        }
+        synchronized (bitmapUseCounts) {
+            drawable = softCache.remove(key);
+            if (drawable != null) {
+                memCache.put(key, drawable);
+            }
+        }
+        return drawable;
+    }
 
+
+    private static DispatchQueue getStageQueue(DispatchQueue[] queues, String key) {
+        if (queues.length == 1 || key == null) {
+            return queues[0];
+        }
+        return queues[(key.hashCode() & 0x7fffffff) % queues.length];
     }
 
+    /**
+     * At most maxDecodingTasks tasks are between decode and publish at a time, which bounds
+     * the decoded bitmaps waiting for the transform stage. The rest wait here by priority.
+     */
+    private void startDecoding(CacheOutTask task) {
+        synchronized (waitingForDecoding) {
+            if (decodingTasksCount >= maxDecodingTasks || waitingForDecodingCount != 0) {
+                int priority = task.group != null ? task.group.getPriority() : DispatchQueue.PRIORITY_VISIBLE;
+                waitingForDecoding.get(Math.max(0, Math.min(waitingForDecoding.size() - 1, priority))).add(task);
+                waitingForDecodingCount++;
+                return;
+            }
+            decodingTasksCount++;
+        }
+        getStageQueue(decodeQueues, task.cacheImage.key).postRunnable(task.decodeRunnable, task.group);
+    }
+
+    private void onDecodingFinished() {
+        CacheOutTask next = null;
+        ArrayList<CacheOutTask> dropped = null;
+        synchronized (waitingForDecoding) {
+            decodingTasksCount--;
+            while (next == null && waitingForDecodingCount != 0) {
+                for (int a = 0; next == null; a++) {
+                    next = waitingForDecoding.get(a).poll();
+                }
+                waitingForDecodingCount--;
+                if (next.group != null && next.group.isCancelled()) {
+                    if (dropped == null) {
+                        dropped = new ArrayList<>();
+                    }
+                    dropped.add(next);
+                    next = null;
+                } else {
+                    decodingTasksCount++;
+                }
+            }
+        }
+        if (dropped != null) {
+            for (int a = 0, N = dropped.size(); a < N; a++) {
+                dropped.get(a).onDropped();
+            }
+        }
+        if (next != null) {
+            getStageQueue(decodeQueues, next.cacheImage.key).postRunnable(next.decodeRunnable, next.group);
+        }
+    }
 
     public String getReplacedKey(String oldKey) {
         if (oldKey == null) {
@@ -584,34 +908,28 @@ public class ImageLoader {
                 memCache.remove(oldKey);
             }
         }
-        Integer val = bitmapUseCounts.get(oldKey);
-        if (val != null) {
-            bitmapUseCounts.put(newKey, val);
-            bitmapUseCounts.remove(oldKey);
-        }
+        bitmapUseCounts.move(oldKey, newKey);
     }
 
     public void incrementUseCount(String key) {
-        Integer count = bitmapUseCounts.get(key);
-        if (count == null) {
-            bitmapUseCounts.put(key, 1);
-        } else {
-            bitmapUseCounts.put(key, count + 1);
-        }
+        bitmapUseCounts.increment(key);
     }
 
     public boolean decrementUseCount(String key) {
-        Integer count = bitmapUseCounts.get(key);
-        if (count == null) {
-            return true;
-        }
-        if (count == 1) {
-            bitmapUseCounts.remove(key);
-            return true;
+        return bitmapUseCounts.decrement(key);
+    }
+
+    /**
+     * Balances {@link #incrementUseCount} for a receiver that no longer shows {@code drawable}.
+     * A bitmap nobody shows that memCache no longer holds goes to the soft tier, which is the
+     * only one to hand bitmaps on to {@link BitmapPool}.
+     */
+    public void releaseImage(String key, Drawable drawable) {
+        if (drawable instanceof BitmapDrawable) {
+            bitmapUseCounts.release(key, (BitmapDrawable) drawable);
         } else {
-            bitmapUseCounts.put(key, count - 1);
+            bitmapUseCounts.decrement(key);
         }
-        return false;
     }
 
     public void removeImage(String key) {
@@ -619,14 +937,17 @@ public class ImageLoader {
         memCache.remove(key);
     }
 
+    /**
+     * Whether either memory tier holds {@code key}. Unlike the load path this never moves an
+     * image back from the soft tier.
+     */
     public boolean isInMemCache(String key, boolean animated) {
-
-        return memCache.get(key) != null;
-
+        return memCache.contains(key) || softCache.contains(key);
     }
 
     public void clearMemory() {
         memCache.evictAll();
+        softCache.clear();
     }
 
     private void removeFromWaitingForThumb(int TAG, ImageReceiver imageReceiver) {
@@ -651,7 +972,7 @@ public class ImageLoader {
         if (imageReceiver == null) {
             return;
         }
-        imageLoadQueue.postRunnable(() -> {
+        imageLoadQueue.postRunnableBatched(() -> {
 
             for (int a = 0; a < 3; a++) {
                 int imageType;
@@ -670,9 +991,9 @@ public class ImageLoader {
                     if (a == 0) {
                         removeFromWaitingForThumb(TAG, imageReceiver);
                     }
-                    CacheImage ei = imageLoadingByTag.get(TAG);
-                    if (ei != null) {
-                        ei.removeImageReceiver(imageReceiver);
+                    ReceiverAttachment attachment = loadingReceiversByTag.get(TAG);
+                    if (attachment != null && attachment.imageReceiver == imageReceiver) {
+                        attachment.owner.removeImageReceiver(attachment);
                     }
                 }
             }
@@ -680,7 +1001,116 @@ public class ImageLoader {
     }
 
 
+    /**
+     * Called when the visible range moved on by about a screen: loads requested so far are
+     * demoted to prefetch, and those one generation older to background, so the decodes for
+     * what is on screen now run first.
+     */
+    public void startNewScrollGeneration() {
+        DispatchQueue.TaskGroup group = currentLoadGroup;
+        currentLoadGroup = new DispatchQueue.TaskGroup(DispatchQueue.PRIORITY_VISIBLE);
+        group.setPriority(DispatchQueue.PRIORITY_PREFETCH);
+        if (previousLoadGroup != null) {
+            previousLoadGroup.setPriority(DispatchQueue.PRIORITY_BACKGROUND);
+        }
+        previousLoadGroup = group;
+    }
+
+    public int getMemCacheMaxSize() {
+        return memCache.maxSize();
+    }
+
+    public LruCache.CacheStats getMemCacheStats() {
+        return memCache.getStats();
+    }
+
+    /**
+     * Loads a gallery image into memCache without a receiver, in the given group. A receiver
+     * that asks for the same key meanwhile attaches to the running load.
+     */
+    public void prefetchImage(final String path, final String filter, final DispatchQueue.TaskGroup group) {
+        if (path == null || group == null) {
+            return;
+        }
+        final String key = ImageLocation.getKey(path, filter);
+        if (memCache.contains(key) || restoreFromMemCache(key) != null) {
+            return;
+        }
+        imageLoadQueue.postRunnableBatched(() -> {
+            if (loadingRequests.containsKey(key) || group.isCancelled()) {
+                return;
+            }
+            File cacheFile;
+            if (path.startsWith("thumb://")) {
+                int idx = path.indexOf(":", 8);
+                cacheFile = idx >= 0 ? new File(path.substring(idx + 1)) : null;
+            } else if (path.startsWith("vthumb://")) {
+                int idx = path.indexOf(":", 9);
+                cacheFile = idx >= 0 ? new File(path.substring(idx + 1)) : null;
+            } else if (!path.startsWith("http")) {
+                cacheFile = new File(path);
+            } else {
+                return;
+            }
+            if (cacheFile == null) {
+                return;
+            }
+            CacheImage img = new CacheImage();
+            img.imageType = ImageReceiver.TYPE_IMAGE;
+            img.key = key;
+            img.filter = filter;
+            img.imageLocation = ImageLocation.getForPath(path);
+            img.finalFilePath = cacheFile;
+            img.cacheTask = new CacheOutTask(img, group);
+            img.cacheQueue = cacheOutQueue;
+            img.prefetchGroup = group;
+            ArrayList<CacheImage> requests = prefetchRequests.get(group);
+            if (requests == null) {
+                requests = new ArrayList<>();
+                prefetchRequests.put(group, requests);
+            }
+            requests.add(img);
+            loadingRequests.put(key, img);
+            img.cacheQueue.postRunnable(img.cacheTask, group);
+        });
+    }
+
+    /**
+     * Drops the prefetches of the group that no receiver has attached to yet. Loads that
+     * gained a receiver keep running.
+     */
+    public void cancelPrefetch(final DispatchQueue.TaskGroup group) {
+        if (group == null) {
+            return;
+        }
+        imageLoadQueue.postRunnableBatched(() -> {
+            ArrayList<CacheImage> requests = prefetchRequests.remove(group);
+            if (requests == null) {
+                return;
+            }
+            for (int a = 0, N = requests.size(); a < N; a++) {
+                CacheImage img = requests.get(a);
+                img.prefetchGroup = null;
+                if (!img.receivers.isEmpty()) {
+                    continue;
+                }
+                if (img.cacheTask != null) {
+                    img.cacheQueue.cancelRunnable(img.cacheTask);
+                    img.cacheTask.cancel();
+                    img.cacheTask = null;
+                }
+                if (loadingRequests.get(img.key) == img) {
+                    loadingRequests.remove(img.key);
+                }
+            }
+        });
+    }
+
     public void putImageToCache(BitmapDrawable bitmap, String key) {
+        BitmapDrawable stale = softCache.remove(key);
+        if (stale != null) {
+            BitmapPool.getInstance().put(stale.getBitmap());
+        }
         memCache.put(key, bitmap);
     }
 
@@ -692,7 +1122,7 @@ public class ImageLoader {
         if (key == null) {
             return;
         }
-        imageLoadQueue.postRunnable(() -> forceLoadingImages.remove(key));
+        imageLoadQueue.postRunnableBatched(() -> forceLoadingImages.remove(key));
     }
 
     private void createLoadOperationForImageReceiver(final ImageReceiver imageReceiver, final String key, final String url, final String ext, final ImageLocation imageLocation, final String httpLocation, final String filter, final int size, final int cacheType, final int imageType, final int thumb, int guid) {
@@ -704,36 +1134,25 @@ public class ImageLoader {
             imageReceiver.setTag(TAG = lastImageNum, imageType);
             lastImageNum++;
             if (lastImageNum == Integer.MAX_VALUE) {
-                lastImageNum = 0;
+                lastImageNum = 1;
             }
         }
 
         final int finalTag = TAG;
-        imageLoadQueue.postRunnable(() -> {
+        imageLoadQueue.postRunnableBatched(() -> {
             boolean added = false;
             if (thumb != 2) {
-                CacheImage alreadyLoadingUrl = imageLoadingByUrl.get(url);
-                CacheImage alreadyLoadingCache = imageLoadingByKeys.get(key);
-                CacheImage alreadyLoadingImage = imageLoadingByTag.get(finalTag);
-                if (alreadyLoadingImage != null) {
-                    if (alreadyLoadingImage == alreadyLoadingCache) {
-                        added = true;
-                    } else if (alreadyLoadingImage == alreadyLoadingUrl) {
-                        if (alreadyLoadingCache == null) {
-                            alreadyLoadingImage.replaceImageReceiver(imageReceiver, key, filter, imageType, guid);
-                        }
+                CacheImage alreadyLoading = loadingRequests.get(key);
+                ReceiverAttachment attachment = loadingReceiversByTag.get(finalTag);
+                if (attachment != null) {
+                    if (attachment.owner == alreadyLoading) {
                         added = true;
                     } else {
-                        alreadyLoadingImage.removeImageReceiver(imageReceiver);
+                        attachment.owner.removeImageReceiver(attachment);
                     }
                 }
-
-                if (!added && alreadyLoadingCache != null) {
-                    alreadyLoadingCache.addImageReceiver(imageReceiver, key, filter, imageType, guid);
-                    added = true;
-                }
-                if (!added && alreadyLoadingUrl != null) {
-                    alreadyLoadingUrl.addImageReceiver(imageReceiver, key, filter, imageType, guid);
+                if (!added && alreadyLoading != null) {
+                    alreadyLoading.addImageReceiver(imageReceiver, imageType, guid);
                     added = true;
                 }
             }
@@ -788,17 +1207,14 @@ public class ImageLoader {
                     img.ext = ext;
 //                    img.httpUrl = httpLocation;
 
-                    img.addImageReceiver(imageReceiver, key, filter, imageType, guid);
                     if (onlyCache || cacheFileExists || cacheFile.exists()) {
+                        img.addImageReceiver(imageReceiver, imageType, guid);
                         img.finalFilePath = cacheFile;
                         img.imageLocation = imageLocation;
-                        img.cacheTask = new CacheOutTask(img);
-                        imageLoadingByKeys.put(key, img);
-                        if (thumb != 0) {
-                            cacheThumbOutQueue.postRunnable(img.cacheTask);
-                        } else {
-                            cacheOutQueue.postRunnable(img.cacheTask);
-                        }
+                        img.cacheTask = new CacheOutTask(img, currentLoadGroup);
+                        img.cacheQueue = thumb != 0 ? cacheThumbOutQueue : cacheOutQueue;
+                        loadingRequests.put(key, img);
+                        img.cacheQueue.postRunnable(img.cacheTask, img.cacheTask.group);
                     }
                 }
             }
@@ -817,15 +1233,19 @@ public class ImageLoader {
         if (!imageSet && imageKey != null) {
             ImageLocation imageLocation = imageReceiver.getImageLocation();
             Drawable drawable;
-            drawable = memCache.get(imageKey);
+            drawable = restoreFromMemCache(imageKey);
             if (drawable != null) {
                 memCache.moveToFront(imageKey);
             }
             if (drawable != null) {
                 cancelLoadingForImageReceiver(imageReceiver, true);
                 imageReceiver.setImageBitmapByKey(drawable, imageKey, ImageReceiver.TYPE_IMAGE, true, guid);
+                imageSet = true;
             }
         }
+        if (imageSet) {
+            return;
+        }
         ImageLocation imageLocation = imageReceiver.getImageLocation();
         String imageFilter = imageReceiver.getImageFilter();
         boolean saveImageToCache = false;
@@ -837,19 +1257,9 @@ public class ImageLoader {
             ext = "jpg";
         }
 
-        for (int a = 0; a < 2; a++) {
-            ImageLocation object = null;
-            if (a == 0) {
-                object = imageLocation;
-            }
-            if (object == null) {
-                continue;
-            }
-            String url = null;
-        }
-
-        if (imageKey != null && imageFilter != null) {
-            imageKey += "@" + imageFilter;
+        if (imageLocation != null && imageLocation.path != null) {
+            imageUrl = imageLocation.path;
+            imageKey = ImageLocation.getKey(imageLocation.path, imageFilter);
         }
 
         if (imageLocation != null && imageLocation.path != null) {
@@ -12,5 +12,26 @@ public class ImageLocation {
         return imageLocation;
     }
 
+    /**
+     * Location of a gallery entry as the photo grid shows it: the gallery's own thumbnail file
+     * if it has one, otherwise a thumb:// or vthumb:// path to the original.
+     */
+    public static ImageLocation getForPhoto(MediaController.PhotoEntry photoEntry) {
+        if (photoEntry.thumbPath != null) {
+            return getForPath(photoEntry.thumbPath);
+        } else if (photoEntry.path != null) {
+            return getForPath((photoEntry.isVideo ? "vthumb://" : "thumb://") + photoEntry.imageId + ":" + photoEntry.path);
+        }
+        return null;
+    }
+
+    /**
+     * Key of the image decoded from {@code path} with {@code filter} in memCache. Receivers,
+     * their load path and prefetches all build it here, so each finds what the others put.
+     */
+    public static String getKey(String path, String filter) {
+        return filter != null ? path + "@" + filter : path;
+    }
+
 
 }
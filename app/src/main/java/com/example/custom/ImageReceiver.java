@@ -301,11 +301,13 @@ public class ImageReceiver implements NotificationCenter.NotificationCenterDeleg
                 crossfadeShader = null;
             }
         } else {
+            recycleBitmap(null, TYPE_IMAGE);
             recycleBitmap(null, TYPE_CROSSFDADE);
             crossfadeShader = null;
         }
         currentImageLocation = imageLocation;
         currentImageFilter = imageFilter;
+        currentImageKey = ImageLocation.getKey(imageLocation.path, imageFilter);
         currentSize = 0;
         currentCacheType = 0;
         staticThumbDrawable = thumb;
@@ -467,14 +469,14 @@ public class ImageReceiver implements NotificationCenter.NotificationCenterDeleg
             setImageBackup.cacheType = currentCacheType;
 
         }
-        NotificationCenter.getInstance().removeObserver(this, NotificationCenter.didReplacedPhotoInMemCache);
+        NotificationCenter.getInstance(currentAccount).removeObserver(this, NotificationCenter.didReplacedPhotoInMemCache);
 
 
         clearImage();
     }
 
     public boolean onAttachedToWindow() {
-        NotificationCenter.getInstance().addObserver(this, NotificationCenter.didReplacedPhotoInMemCache);
+        NotificationCenter.getInstance(currentAccount).addObserver(this, NotificationCenter.didReplacedPhotoInMemCache);
         if (setImageBackup != null && (setImageBackup.imageLocation != null  || setImageBackup.thumb != null)) {
             setImage(setImageBackup.imageLocation, setImageBackup.imageFilter,setImageBackup.thumb);
             return true;
@@ -837,6 +839,7 @@ public class ImageReceiver implements NotificationCenter.NotificationCenterDeleg
             if (!key.equals(currentImageKey)) {
                 return false;
             }
+            ImageLoader.getInstance().incrementUseCount(currentImageKey);
             currentImageDrawable = drawable;
 
             if (roundRadius != 0 && drawable instanceof BitmapDrawable) {
@@ -944,13 +947,7 @@ public class ImageReceiver implements NotificationCenter.NotificationCenterDeleg
         String replacedKey = ImageLoader.getInstance().getReplacedKey(key);
         if (key != null && (newKey == null || !newKey.equals(key)) && image != null) {
             if (image instanceof BitmapDrawable) {
-                Bitmap bitmap = ((BitmapDrawable) image).getBitmap();
-                boolean canDelete = ImageLoader.getInstance().decrementUseCount(key);
-                if (!ImageLoader.getInstance().isInMemCache(key, false)) {
-                    if (canDelete) {
-                        bitmap.recycle();
-                    }
-                }
+                ImageLoader.getInstance().releaseImage(key, image);
             }
         }
         if (type == TYPE_MEDIA) {
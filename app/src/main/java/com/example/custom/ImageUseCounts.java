@@ -0,0 +1,104 @@
+package com.example.custom;
+
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * How many receivers show the image cached under each key. Decode threads and the UI thread
+ * both change the counts, so every method locks this object, and ImageLoader holds the same lock
+ * while it moves an image between its memory tiers. An image is only handed over to
+ * {@link Tiers#demote} once no receiver counts it and memCache no longer holds its key.
+ */
+class ImageUseCounts<T> {
+
+    interface Tiers<T> {
+
+        /**
+         * Whether memCache holds an image for {@code key} right now.
+         */
+        boolean contains(String key);
+
+        /**
+         * Takes over an image that nobody shows and that memCache has given up.
+         */
+        void demote(String key, T value);
+    }
+
+    private final HashMap<String, Integer> counts = new HashMap<>();
+    private final HashSet<String> evictedInUse = new HashSet<>();
+    private final Tiers<T> tiers;
+
+    ImageUseCounts(Tiers<T> tiers) {
+        this.tiers = tiers;
+    }
+
+    public synchronized void increment(String key) {
+        Integer count = counts.get(key);
+        if (count == null) {
+            counts.put(key, 1);
+        } else {
+            counts.put(key, count + 1);
+        }
+    }
+
+    /**
+     * @return true if no use of {@code key} is left.
+     */
+    public synchronized boolean decrement(String key) {
+        Integer count = counts.get(key);
+        if (count == null) {
+            return true;
+        }
+        if (count == 1) {
+            counts.remove(key);
+            return true;
+        } else {
+            counts.put(key, count - 1);
+        }
+        return false;
+    }
+
+    public synchronized int get(String key) {
+        Integer count = counts.get(key);
+        return count != null ? count : 0;
+    }
+
+    public synchronized void remove(String key) {
+        counts.remove(key);
+        evictedInUse.remove(key);
+    }
+
+    public synchronized void move(String oldKey, String newKey) {
+        Integer count = counts.remove(oldKey);
+        if (count != null) {
+            counts.put(newKey, count);
+        }
+        if (evictedInUse.remove(oldKey)) {
+            evictedInUse.add(newKey);
+        }
+    }
+
+    /**
+     * A receiver stopped showing {@code value}. The last one to let go demotes it if memCache
+     * evicted it while it was still shown. Otherwise the eviction, when it comes, demotes it.
+     * memCache removes an entry before it reports the eviction, so the key being gone alone
+     * would let both sides demote the same image.
+     */
+    public synchronized void release(String key, T value) {
+        if (decrement(key) && evictedInUse.remove(key) && !tiers.contains(key)) {
+            tiers.demote(key, value);
+        }
+    }
+
+    /**
+     * memCache evicted {@code value} to make space. It is demoted right away if nobody shows it
+     * and the key has not been put back meanwhile, and by the last {@link #release} otherwise.
+     */
+    public synchronized void onEvicted(String key, T value) {
+        if (counts.containsKey(key)) {
+            evictedInUse.add(key);
+        } else if (!tiers.contains(key)) {
+            tiers.demote(key, value);
+        }
+    }
+}
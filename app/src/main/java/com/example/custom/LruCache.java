@@ -10,23 +10,121 @@ package com.example.custom;
 
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Iterator;
-import java.util.LinkedHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
- * Static library version of {@link android.util.LruCache}. Used to write apps
- * that run on API levels prior to 12. When running on API level 12 or above,
- * this implementation is still used; it does not try to switch to the
- * framework's implementation. See the framework SDK documentation for a class
- * overview.
+ * Size-bounded LRU cache that can be read from any thread without locking.
+ *
+ * <p>Entries live in a {@link ConcurrentHashMap}, so {@link #get} and {@link #contains} never
+ * block. The recency order is a linked list guarded by one lock that only writers hold. Reads
+ * record the key into one of several striped ring buffers instead of touching the list; keys
+ * rather than entries, so a buffered read does not keep an evicted value alive. The buffers
+ * are drained into the list by whichever thread next takes the lock: a reader that has just
+ * filled its buffer drains that buffer, and a writer drains its own and one other in turn, so
+ * a write never replays more than two buffers of reads. A full buffer overwrites old
+ * records, so under heavy contention the order is approximate, but a read never waits for a
+ * write.
+ *
+ * <p>With {@link #POLICY_TINY_LFU} new entries first go through a small LRU window. Entries
+ * leaving the window are admitted unless the main space's eviction victim has a higher
+ * estimated access frequency, so a one-off scan through many keys cannot flush entries that
+ * are used again and again, while ties go to the newer entry. The main space is a segmented
+ * LRU: an entry read while on probation moves to the protected segment.
+ *
+ * <p>{@link #getStats()} returns a snapshot of the hit, miss, put and removal counters and of
+ * the entry size and eviction age histograms. Hits and misses are counted in per-thread
+ * stripes so they do not add contention to {@link #get}; everything else is counted under the
+ * writer lock.
  */
 public class LruCache<T> {
-    private final LinkedHashMap<String, T> map;
-    private final LinkedHashMap<String, ArrayList<String>> mapFilters;
+
+    public static final int POLICY_LRU = 0;
+    public static final int POLICY_TINY_LFU = 1;
+
+    private static final int READ_BUFFER_SIZE = 32;
+    private static final int READ_BUFFER_MASK = READ_BUFFER_SIZE - 1;
+
+    private static final int QUEUE_WINDOW = 0;
+    private static final int QUEUE_PROBATION = 1;
+    private static final int QUEUE_PROTECTED = 2;
+
+    private static final int HISTOGRAM_SIZE = 32;
+    private static final int COUNTER_STRIDE = 8;
+    private static final int COUNTER_HITS = 0;
+    private static final int COUNTER_MISSES = 1;
+
+    /**
+     * A cached entry. Keys of the form {@code base@filter} are split once here; all nodes that
+     * share a base are chained through {@code filterPrev}/{@code filterNext} in the order they
+     * were first put, so the filter index needs no per-mutation parsing or lists of its own.
+     * The first node's {@code filterPrev} points to the last one.
+     */
+    private static final class Node<T> {
+        final String key;
+        final String base;
+        final String filter;
+        final T value;
+        final int size;
+        final long createdTime = System.nanoTime();
+        Node<T> prev;
+        Node<T> next;
+        Node<T> filterPrev;
+        Node<T> filterNext;
+        boolean linked;
+        int queue;
+
+        Node(String key, T value, int size) {
+            this.key = key;
+            this.value = value;
+            this.size = size;
+            int index = key != null ? key.indexOf('@') : -1;
+            if (index >= 0 && index < key.length() - 1) {
+                base = key.substring(0, index);
+                filter = key.substring(index + 1);
+            } else {
+                base = null;
+                filter = null;
+            }
+        }
+    }
+
+    private final ConcurrentHashMap<String, Node<T>> map;
+    private final HashMap<String, Node<T>> mapFilters;
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    private final Node<T> window = new Node<>(null, null, 0);
+    private final Node<T> probation = new Node<>(null, null, 0);
+    private final Node<T> protectedQueue = new Node<>(null, null, 0);
+    private Node<T> evicted;
+
+    private final int policy;
+    private final FrequencySketch sketch;
+    private int windowMaxSize;
+    private int protectedMaxSize;
+    private int windowSize;
+    private int protectedSize;
+
+    /** All read buffers back to back, {@link #READ_BUFFER_SIZE} slots per stripe. */
+    private final AtomicReferenceArray<String> readBuffers;
+    private final AtomicInteger[] readBufferIndexes;
+    private final int readBuffersMask;
+    /** The stripe the next write drains. Guarded by the lock. */
+    private int drainStripe;
+
+    private final AtomicLongArray readCounters;
+    private long putCount;
+    private long evictionCount;
+    private long explicitRemoveCount;
+    private long replaceCount;
+    private final long[] entrySizeHistogram = new long[HISTOGRAM_SIZE];
+    private final long[] evictionAgeHistogram = new long[HISTOGRAM_SIZE];
 
     /** Size of this cache in units. Not necessarily the number of elements. */
     private int size;
-    private int maxSize;
+    private volatile int maxSize;
 
     /**
      * @param maxSize for caches that do not override {@link #sizeOf}, this is
@@ -34,12 +132,66 @@ public class LruCache<T> {
      *     this is the maximum sum of the sizes of the entries in this cache.
      */
     public LruCache(int maxSize) {
+        this(maxSize, POLICY_LRU);
+    }
+
+    /**
+     * @param policy {@link #POLICY_LRU} or {@link #POLICY_TINY_LFU}.
+     */
+    public LruCache(int maxSize, int policy) {
         if (maxSize <= 0) {
             throw new IllegalArgumentException("maxSize <= 0");
         }
-        this.maxSize = maxSize;
-        this.map = new LinkedHashMap<>(0, 0.75f, true);
-        this.mapFilters = new LinkedHashMap<>();
+        this.policy = policy;
+        this.map = new ConcurrentHashMap<>(16, 0.75f, 4);
+        this.mapFilters = new HashMap<>();
+        window.prev = window.next = window;
+        probation.prev = probation.next = probation;
+        protectedQueue.prev = protectedQueue.next = protectedQueue;
+        sketch = policy == POLICY_TINY_LFU ? new FrequencySketch() : null;
+        setMaxSizeInternal(maxSize);
+
+        int count = 1;
+        while (count < Math.min(16, Runtime.getRuntime().availableProcessors() * 2)) {
+            count <<= 1;
+        }
+        readBuffersMask = count - 1;
+        readBuffers = new AtomicReferenceArray<>(count * READ_BUFFER_SIZE);
+        readBufferIndexes = new AtomicInteger[count];
+        for (int a = 0; a < count; a++) {
+            readBufferIndexes[a] = new AtomicInteger();
+        }
+        readCounters = new AtomicLongArray(count * COUNTER_STRIDE);
+    }
+
+    private void setMaxSizeInternal(int value) {
+        maxSize = value;
+        if (policy == POLICY_TINY_LFU) {
+            windowMaxSize = Math.max(1, value / 100);
+            protectedMaxSize = (value - windowMaxSize) / 5 * 4;
+        } else {
+            windowMaxSize = value;
+            protectedMaxSize = 0;
+        }
+    }
+
+    /**
+     * Sets the size of the cache, evicting entries right away if it shrinks.
+     */
+    public void resize(int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        Node<T> evicted;
+        evictionLock.lock();
+        try {
+            setMaxSizeInternal(maxSize);
+            drainReadBuffers();
+            evicted = evict(maxSize, null, false);
+        } finally {
+            evictionLock.unlock();
+        }
+        notifyEvicted(evicted);
     }
 
     /**
@@ -52,32 +204,144 @@ public class LruCache<T> {
         if (key == null) {
             throw new NullPointerException("key == null");
         }
-
-        T mapValue;
-        synchronized (this) {
-            mapValue = map.get(key);
-            if (mapValue != null) {
-                return mapValue;
-            }
+        Node<T> node = map.get(key);
+        int stripe = (int) Thread.currentThread().getId() & readBuffersMask;
+        if (node == null) {
+            readCounters.incrementAndGet(stripe * COUNTER_STRIDE + COUNTER_MISSES);
+            return null;
         }
-        return null;
+        readCounters.incrementAndGet(stripe * COUNTER_STRIDE + COUNTER_HITS);
+        recordRead(stripe, key);
+        return node.value;
     }
 
     public ArrayList<String> getFilterKeys(String key) {
-        ArrayList<String> arr = mapFilters.get(key);
-        if (arr != null) {
-            return new ArrayList<>(arr);
+        evictionLock.lock();
+        try {
+            Node<T> node = mapFilters.get(key);
+            if (node == null) {
+                return null;
+            }
+            ArrayList<String> arr = new ArrayList<>();
+            for (; node != null; node = node.filterNext) {
+                arr.add(node.filter);
+            }
+            return arr;
+        } finally {
+            evictionLock.unlock();
         }
-        return null;
     }
 
     public void moveToFront(String key) {
-        T value = map.remove(key);
-        if (value != null) {
-            map.put(key, value);
+        if (map.containsKey(key)) {
+            recordRead((int) Thread.currentThread().getId() & readBuffersMask, key);
+        }
+    }
+
+    private void recordRead(int stripe, String key) {
+        int index = readBufferIndexes[stripe].getAndIncrement() & READ_BUFFER_MASK;
+        readBuffers.lazySet(stripe * READ_BUFFER_SIZE + index, key);
+        if (index == READ_BUFFER_MASK && evictionLock.tryLock()) {
+            try {
+                drainReadBuffer(stripe);
+            } finally {
+                evictionLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Replays one stripe's buffered reads, clearing each slot. A key whose entry has been
+     * removed or replaced since is applied to whatever the map holds for it now.
+     */
+    private void drainReadBuffer(int stripe) {
+        for (int a = stripe * READ_BUFFER_SIZE, N = a + READ_BUFFER_SIZE; a < N; a++) {
+            String key = readBuffers.get(a);
+            if (key != null) {
+                readBuffers.lazySet(a, null);
+                Node<T> node = map.get(key);
+                if (node != null && node.linked) {
+                    onAccess(node);
+                }
+            }
         }
     }
 
+    /**
+     * Drains the calling thread's stripe and the next other one in turn, so a write replays at
+     * most two buffers of reads however many stripes there are.
+     */
+    private void drainReadBuffersForWrite() {
+        int stripe = (int) Thread.currentThread().getId() & readBuffersMask;
+        drainReadBuffer(stripe);
+        if (drainStripe == stripe) {
+            drainStripe = (drainStripe + 1) & readBuffersMask;
+        }
+        if (drainStripe != stripe) {
+            drainReadBuffer(drainStripe);
+        }
+        drainStripe = (drainStripe + 1) & readBuffersMask;
+    }
+
+    private void drainReadBuffers() {
+        for (int a = 0; a <= readBuffersMask; a++) {
+            drainReadBuffer(a);
+        }
+    }
+
+    private void onAccess(Node<T> node) {
+        if (policy == POLICY_LRU) {
+            unlink(node);
+            linkLast(window, node);
+            return;
+        }
+        sketch.increment(node.key.hashCode());
+        if (node.queue == QUEUE_WINDOW) {
+            unlink(node);
+            linkLast(window, node);
+        } else if (node.queue == QUEUE_PROTECTED) {
+            unlink(node);
+            linkLast(protectedQueue, node);
+        } else {
+            unlink(node);
+            node.queue = QUEUE_PROTECTED;
+            linkLast(protectedQueue, node);
+            protectedSize += node.size;
+            while (protectedSize > protectedMaxSize && protectedQueue.next != node) {
+                Node<T> demoted = protectedQueue.next;
+                unlink(demoted);
+                protectedSize -= demoted.size;
+                demoted.queue = QUEUE_PROBATION;
+                linkLast(probation, demoted);
+            }
+        }
+    }
+
+    private void linkLast(Node<T> head, Node<T> node) {
+        node.prev = head.prev;
+        node.next = head;
+        head.prev.next = node;
+        head.prev = node;
+        node.linked = true;
+    }
+
+    private void removeNode(Node<T> node) {
+        unlink(node);
+        if (node.queue == QUEUE_WINDOW) {
+            windowSize -= node.size;
+        } else if (node.queue == QUEUE_PROTECTED) {
+            protectedSize -= node.size;
+        }
+        size -= node.size;
+    }
+
+    private void unlink(Node<T> node) {
+        node.prev.next = node.next;
+        node.next.prev = node.prev;
+        node.prev = node.next = null;
+        node.linked = false;
+    }
+
     /**
      * Caches {@code value} for {@code key}. The value is moved to the head of
      * the queue.
@@ -89,70 +353,199 @@ public class LruCache<T> {
             throw new NullPointerException("key == null || value == null");
         }
 
-        T previous;
-        synchronized (this) {
-            size += safeSizeOf(key, value);
-            previous = map.put(key, value);
+        Node<T> node = new Node<>(key, value, safeSizeOf(key, value));
+        Node<T> previous;
+        Node<T> evicted;
+        evictionLock.lock();
+        try {
+            drainReadBuffersForWrite();
+            previous = map.put(key, node);
             if (previous != null) {
-                size -= safeSizeOf(key, previous);
+                removeNode(previous);
+                replaceFilter(previous, node);
+                replaceCount++;
+            } else {
+                addFilter(node);
             }
-        }
-
-        String[] args = key.split("@");
-        if (args.length > 1) {
-            ArrayList<String> arr = mapFilters.get(args[0]);
-            if (arr == null) {
-                arr = new ArrayList<>();
-                mapFilters.put(args[0], arr);
-            }
-            if (!arr.contains(args[1])) {
-                arr.add(args[1]);
+            putCount++;
+            entrySizeHistogram[getBucket(node.size)]++;
+            if (sketch != null) {
+                if (map.size() > sketch.capacity) {
+                    sketch.ensureCapacity(map.size() * 2);
+                }
+                sketch.increment(key.hashCode());
             }
+            node.queue = QUEUE_WINDOW;
+            linkLast(window, node);
+            windowSize += node.size;
+            size += node.size;
+            evicted = evict(maxSize, node, false);
+        } finally {
+            evictionLock.unlock();
         }
 
         if (previous != null) {
-            entryRemoved(false, key, previous, value);
+            entryRemoved(false, key, previous.value, value);
         }
-
-        trimToSize(maxSize, key);
-        return previous;
+        notifyEvicted(evicted);
+        return previous != null ? previous.value : null;
     }
 
     /**
+     * Removes entries until the size fits. The removed nodes are chained through {@code next}
+     * and returned, so the caller can report them after unlocking.
+     *
      * @param maxSize the maximum size of the cache before returning. May be -1
      *     to evict even 0-sized elements.
+     * @param explicit whether the removals are counted as explicit rather than capacity evictions.
      */
-    private void trimToSize(int maxSize, String justAdded) {
-        synchronized (this) {
-            Iterator<HashMap.Entry<String, T>> iterator = map.entrySet().iterator();
-            while (iterator.hasNext()) {
-                if (size <= maxSize || map.isEmpty()) {
+    private Node<T> evict(int maxSize, Node<T> justAdded, boolean explicit) {
+        if (policy == POLICY_LRU) {
+            Node<T> node = window.next;
+            while (size > maxSize && node != window) {
+                Node<T> next = node.next;
+                if (node != justAdded) {
+                    evictNode(node, explicit);
+                }
+                node = next;
+            }
+        } else {
+            Node<T> candidate = null;
+            Node<T> node = window.next;
+            while (windowSize > windowMaxSize && node != window) {
+                Node<T> next = node.next;
+                if (node != justAdded) {
+                    unlink(node);
+                    windowSize -= node.size;
+                    node.queue = QUEUE_PROBATION;
+                    linkLast(probation, node);
+                    if (candidate == null) {
+                        candidate = node;
+                    }
+                }
+                node = next;
+            }
+            while (size > maxSize) {
+                Node<T> victim = first(probation, justAdded);
+                if (victim == null) {
+                    victim = first(protectedQueue, justAdded);
+                }
+                if (victim == null) {
+                    victim = first(window, justAdded);
+                }
+                if (victim == null) {
                     break;
                 }
-                HashMap.Entry<String, T> entry = iterator.next();
-
-                String key = entry.getKey();
-                if (justAdded != null && justAdded.equals(key)) {
-                    continue;
+                if (candidate != null && candidate != victim && sketch.frequency(candidate.key.hashCode()) < sketch.frequency(victim.key.hashCode())) {
+                    victim = candidate;
                 }
-                T value = entry.getValue();
-                size -= safeSizeOf(key, value);
-                iterator.remove();
-
-                String[] args = key.split("@");
-                if (args.length > 1) {
-                    ArrayList<String> arr = mapFilters.get(args[0]);
-                    if (arr != null) {
-                        arr.remove(args[1]);
-                        if (arr.isEmpty()) {
-                            mapFilters.remove(args[0]);
-                        }
-                    }
+                if (victim == candidate) {
+                    candidate = candidate.next != probation ? candidate.next : null;
                 }
+                evictNode(victim, explicit);
+            }
+        }
+        Node<T> result = evicted;
+        evicted = null;
+        return result;
+    }
+
+    private Node<T> first(Node<T> head, Node<T> skip) {
+        Node<T> node = head.next;
+        if (node == skip) {
+            node = node.next;
+        }
+        return node != head ? node : null;
+    }
+
+    private void evictNode(Node<T> node, boolean explicit) {
+        map.remove(node.key, node);
+        removeNode(node);
+        removeFilter(node);
+        if (explicit) {
+            explicitRemoveCount++;
+        } else {
+            evictionCount++;
+            evictionAgeHistogram[getBucket((System.nanoTime() - node.createdTime) / 1000000)]++;
+        }
+        node.next = evicted;
+        evicted = node;
+    }
+
+    private void notifyEvicted(Node<T> evicted) {
+        while (evicted != null) {
+            Node<T> next = evicted.next;
+            evicted.next = null;
+            entryRemoved(true, evicted.key, evicted.value, null);
+            evicted = next;
+        }
+    }
+
+    private void addFilter(Node<T> node) {
+        if (node.filter == null) {
+            return;
+        }
+        Node<T> first = mapFilters.get(node.base);
+        if (first == null) {
+            mapFilters.put(node.base, node);
+            node.filterPrev = node;
+            return;
+        }
+        Node<T> last = first.filterPrev;
+        last.filterNext = node;
+        node.filterPrev = last;
+        first.filterPrev = node;
+    }
 
-                entryRemoved(true, key, value, null);
+    /**
+     * Puts {@code node} in the place of {@code previous}, which has the same key, so a replaced
+     * entry keeps its position in the filter order.
+     */
+    private void replaceFilter(Node<T> previous, Node<T> node) {
+        if (node.filter == null) {
+            return;
+        }
+        Node<T> first = mapFilters.get(node.base);
+        Node<T> next = previous.filterNext;
+        if (previous == first) {
+            mapFilters.put(node.base, node);
+            node.filterPrev = next != null ? previous.filterPrev : node;
+            first = node;
+        } else {
+            node.filterPrev = previous.filterPrev;
+            node.filterPrev.filterNext = node;
+        }
+        node.filterNext = next;
+        if (next != null) {
+            next.filterPrev = node;
+        } else {
+            first.filterPrev = node;
+        }
+        previous.filterPrev = previous.filterNext = null;
+    }
+
+    private void removeFilter(Node<T> node) {
+        if (node.filter == null) {
+            return;
+        }
+        Node<T> first = mapFilters.get(node.base);
+        Node<T> next = node.filterNext;
+        if (node == first) {
+            if (next != null) {
+                next.filterPrev = node.filterPrev;
+                mapFilters.put(node.base, next);
+            } else {
+                mapFilters.remove(node.base);
+            }
+        } else {
+            node.filterPrev.filterNext = next;
+            if (next != null) {
+                next.filterPrev = node.filterPrev;
+            } else {
+                first.filterPrev = node.filterPrev;
             }
         }
+        node.filterPrev = node.filterNext = null;
     }
 
     /**
@@ -165,33 +558,27 @@ public class LruCache<T> {
             throw new NullPointerException("key == null");
         }
 
-        T previous;
-        synchronized (this) {
+        Node<T> previous;
+        evictionLock.lock();
+        try {
             previous = map.remove(key);
             if (previous != null) {
-                size -= safeSizeOf(key, previous);
+                removeNode(previous);
+                removeFilter(previous);
+                explicitRemoveCount++;
             }
+        } finally {
+            evictionLock.unlock();
         }
 
         if (previous != null) {
-            String[] args = key.split("@");
-            if (args.length > 1) {
-                ArrayList<String> arr = mapFilters.get(args[0]);
-                if (arr != null) {
-                    arr.remove(args[1]);
-                    if (arr.isEmpty()) {
-                        mapFilters.remove(args[0]);
-                    }
-                }
-            }
-
-            entryRemoved(false, key, previous, null);
+            entryRemoved(false, key, previous.value, null);
+            return previous.value;
         }
-
-        return previous;
+        return null;
     }
 
-    public boolean contains(String key){
+    public boolean contains(String key) {
         return map.containsKey(key);
     }
 
@@ -235,7 +622,15 @@ public class LruCache<T> {
      * Clear the cache, calling {@link #entryRemoved} on each removed entry.
      */
     public final void evictAll() {
-        trimToSize(-1, null); // -1 will evict 0-sized elements
+        Node<T> evicted;
+        evictionLock.lock();
+        try {
+            drainReadBuffers();
+            evicted = evict(-1, null, true); // -1 will evict 0-sized elements
+        } finally {
+            evictionLock.unlock();
+        }
+        notifyEvicted(evicted);
     }
 
     /**
@@ -243,8 +638,13 @@ public class LruCache<T> {
      * of entries in the cache. For all other caches, this returns the sum of
      * the sizes of the entries in this cache.
      */
-    public synchronized final int size() {
-        return size;
+    public final int size() {
+        evictionLock.lock();
+        try {
+            return size;
+        } finally {
+            evictionLock.unlock();
+        }
     }
 
     /**
@@ -252,7 +652,155 @@ public class LruCache<T> {
      * number of entries in the cache. For all other caches, this returns the
      * maximum sum of the sizes of the entries in this cache.
      */
-    public synchronized final int maxSize() {
+    public final int maxSize() {
         return maxSize;
     }
+
+    public static class CacheStats {
+        public long hitCount;
+        public long missCount;
+        public long putCount;
+        public long evictionCount;
+        public long explicitRemoveCount;
+        public long replaceCount;
+        public int entryCount;
+        public int size;
+        public int maxSize;
+        /** Entries put by size, bucket {@code a} holds sizes in [2^a, 2^(a+1)). */
+        public long[] entrySizeHistogram;
+        /** Capacity evictions by time since put, bucket {@code a} holds [2^a, 2^(a+1)) ms. */
+        public long[] evictionAgeHistogram;
+
+        public float getHitRate() {
+            long total = hitCount + missCount;
+            return total == 0 ? 0 : hitCount / (float) total;
+        }
+
+        public long getEvictionAgePercentile(float percentile) {
+            long threshold = (long) Math.ceil(evictionCount * percentile);
+            long seen = 0;
+            for (int a = 0; a < evictionAgeHistogram.length; a++) {
+                seen += evictionAgeHistogram[a];
+                if (seen != 0 && seen >= threshold) {
+                    return 1L << (a + 1);
+                }
+            }
+            return 0;
+        }
+
+        @Override
+        public String toString() {
+            return "hits=" + hitCount + " misses=" + missCount + " hitRate=" + (int) (getHitRate() * 100) + "% puts=" + putCount + " evictions=" + evictionCount + " removes=" + explicitRemoveCount + " replaces=" + replaceCount + " entries=" + entryCount + " size=" + size / 1024 + "/" + maxSize / 1024 + "K evictionAge=" + getEvictionAgePercentile(0.5f) + "/" + getEvictionAgePercentile(0.99f) + "ms";
+        }
+    }
+
+    /**
+     * Returns a snapshot of the counters. Hits and misses are summed from the stripes without
+     * the lock, so they may be a few reads behind the rest.
+     */
+    public CacheStats getStats() {
+        CacheStats stats = new CacheStats();
+        for (int a = 0; a < readBufferIndexes.length; a++) {
+            stats.hitCount += readCounters.get(a * COUNTER_STRIDE + COUNTER_HITS);
+            stats.missCount += readCounters.get(a * COUNTER_STRIDE + COUNTER_MISSES);
+        }
+        evictionLock.lock();
+        try {
+            stats.putCount = putCount;
+            stats.evictionCount = evictionCount;
+            stats.explicitRemoveCount = explicitRemoveCount;
+            stats.replaceCount = replaceCount;
+            stats.entryCount = map.size();
+            stats.size = size;
+            stats.maxSize = maxSize;
+            stats.entrySizeHistogram = entrySizeHistogram.clone();
+            stats.evictionAgeHistogram = evictionAgeHistogram.clone();
+        } finally {
+            evictionLock.unlock();
+        }
+        return stats;
+    }
+
+    private static int getBucket(long value) {
+        return Math.min(HISTOGRAM_SIZE - 1, 63 - Long.numberOfLeadingZeros(Math.max(1, value)));
+    }
+
+    /**
+     * Count-min sketch of 4-bit counters, four per key, sixteen to a long. All counters are
+     * halved once the number of increments reaches ten times the capacity, so old popularity
+     * fades out.
+     */
+    private static final class FrequencySketch {
+
+        private static final long[] SEEDS = {0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+        private static final long RESET_MASK = 0x7777777777777777L;
+
+        private long[] table;
+        private int tableMask;
+        private int capacity;
+        private int sampleSize;
+        private int additions;
+
+        FrequencySketch() {
+            ensureCapacity(64);
+        }
+
+        void ensureCapacity(int maximum) {
+            int length = 1;
+            while (length < maximum && length < (1 << 24)) {
+                length <<= 1;
+            }
+            if (table != null && table.length >= length) {
+                return;
+            }
+            table = new long[length];
+            tableMask = length - 1;
+            capacity = maximum;
+            sampleSize = 10 * maximum;
+            additions = 0;
+        }
+
+        int frequency(int hashCode) {
+            int hash = spread(hashCode);
+            int start = (hash & 3) << 2;
+            int frequency = 15;
+            for (int a = 0; a < 4; a++) {
+                int count = (int) ((table[indexOf(hash, a)] >>> ((start + a) << 2)) & 0xfL);
+                frequency = Math.min(frequency, count);
+            }
+            return frequency;
+        }
+
+        void increment(int hashCode) {
+            int hash = spread(hashCode);
+            int start = (hash & 3) << 2;
+            boolean added = false;
+            for (int a = 0; a < 4; a++) {
+                int index = indexOf(hash, a);
+                long mask = 0xfL << ((start + a) << 2);
+                if ((table[index] & mask) != mask) {
+                    table[index] += 1L << ((start + a) << 2);
+                    added = true;
+                }
+            }
+            if (added && ++additions >= sampleSize) {
+                for (int a = 0; a < table.length; a++) {
+                    table[a] = (table[a] >>> 1) & RESET_MASK;
+                }
+                additions >>>= 1;
+            }
+        }
+
+        private int indexOf(int hash, int depth) {
+            long h = (hash + SEEDS[depth]) * SEEDS[depth];
+            h += h >>> 32;
+            return (int) h & tableMask;
+        }
+
+        private static int spread(int x) {
+            x = ((x >>> 16) ^ x) * 0x45d9f3b;
+            x = ((x >>> 16) ^ x) * 0x45d9f3b;
+            return (x >>> 16) ^ x;
+        }
+    }
 }
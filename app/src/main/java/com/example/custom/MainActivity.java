@@ -22,7 +22,7 @@ import com.example.custom.camera.CameraController;
 
 import java.util.ArrayList;
 
-public class MainActivity extends AppCompatActivity implements NotificationCenter.NotificationCenterDelegate {
+public class MainActivity extends AppCompatActivity implements NotificationCenter.EventDelegate {
 
 
     private boolean deviceHasGoodCamera;
@@ -40,6 +40,7 @@ public class MainActivity extends AppCompatActivity implements NotificationCente
     private MediaController.AlbumEntry galleryAlbumEntry;
 
     private PhotoAttachAdapter adapter;
+    private int scrolledSinceGeneration;
     private float cornerRadius = 1.0f;
     private boolean mediaEnabled = true;
     private static ArrayList<Object> cameraPhotos = new ArrayList<>();
@@ -48,8 +49,8 @@ public class MainActivity extends AppCompatActivity implements NotificationCente
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
-        NotificationCenter.getInstance().addObserver(this, NotificationCenter.albumsDidLoaded);
-        NotificationCenter.getInstance().addObserver(this, NotificationCenter.cameraInitied);
+        NotificationCenter.getGlobalInstance().addObserver(this, NotificationCenter.albumsDidLoaded);
+        NotificationCenter.getGlobalInstance().addObserver(this, NotificationCenter.cameraInitied);
 
         MediaController.getInstance().checkGallery();
         checkCamera(true);
@@ -88,6 +89,11 @@ public class MainActivity extends AppCompatActivity implements NotificationCente
             @Override
             public void onScrolled(@NonNull RecyclerView recyclerView, int dx, int dy) {
                 super.onScrolled(recyclerView, dx, dy);
+                scrolledSinceGeneration += Math.abs(dy);
+                if (scrolledSinceGeneration >= recyclerView.getMeasuredHeight()) {
+                    scrolledSinceGeneration = 0;
+                    ImageLoader.getInstance().startNewScrollGeneration();
+                }
             }
         });
 
@@ -110,6 +116,12 @@ public class MainActivity extends AppCompatActivity implements NotificationCente
 
         gridView.setLayoutManager(layoutManager);
         gridView.setAdapter(adapter = new PhotoAttachAdapter(this, true));
+        gridView.addOnScrollListener(new PhotoPrefetcher(layoutManager, itemSize, position -> {
+            if (adapter.needCamera && selectedAlbumEntry == galleryAlbumEntry) {
+                position--;
+            }
+            return getPhotoEntryAtPosition(position);
+        }));
 
     }
 
@@ -144,8 +156,8 @@ public class MainActivity extends AppCompatActivity implements NotificationCente
     }
 
     @Override
-    public void didReceivedNotification(int id, Object... args) {
-        if (id == NotificationCenter.albumsDidLoaded) {
+    public void didReceivedEvent(NotificationCenter.Event event) {
+        if (event.getId() == NotificationCenter.albumsDidLoaded) {
 //            if (adapter != null) {
             galleryAlbumEntry = MediaController.allMediaAlbumEntry;
             if (selectedAlbumEntry == null) {
@@ -393,8 +405,8 @@ public class MainActivity extends AppCompatActivity implements NotificationCente
             return (MediaController.PhotoEntry) cameraPhotos.get(position);
         }
         position -= cameraCount;
-        if (position < MediaController.allMediaAlbumEntry.photos.size()) {
-            return MediaController.allMediaAlbumEntry.photos.get(position);
+        if (galleryAlbumEntry != null && position < galleryAlbumEntry.photos.size()) {
+            return galleryAlbumEntry.photos.get(position);
         }
         return null;
     }
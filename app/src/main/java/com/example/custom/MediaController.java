@@ -21,16 +21,12 @@ import android.media.MediaFormat;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Environment;
-import android.os.Handler;
-import android.os.Looper;
-import android.os.Message;
 import android.provider.MediaStore;
 import android.provider.OpenableColumns;
 import android.util.SparseArray;
 
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.concurrent.CountDownLatch;
 
 public class MediaController {
 
@@ -71,85 +67,6 @@ public class MediaController {
         }
     }
 
-    public class DispatchQueue extends Thread {
-
-        private volatile Handler handler = null;
-        private CountDownLatch syncLatch = new CountDownLatch(1);
-
-        public DispatchQueue(final String threadName) {
-            setName(threadName);
-            start();
-        }
-
-        public void sendMessage(Message msg, int delay) {
-            try {
-                syncLatch.await();
-                if (delay <= 0) {
-                    handler.sendMessage(msg);
-                } else {
-                    handler.sendMessageDelayed(msg, delay);
-                }
-            } catch (Exception e) {
-            }
-        }
-
-        public void cancelRunnable(Runnable runnable) {
-            try {
-                syncLatch.await();
-                handler.removeCallbacks(runnable);
-            } catch (Exception e) {
-
-            }
-        }
-
-        public void postRunnable(Runnable runnable) {
-            postRunnable(runnable, 0);
-        }
-
-        public void postRunnable(Runnable runnable, long delay) {
-            try {
-                syncLatch.await();
-            } catch (Exception e) {
-
-            }
-            if (delay <= 0) {
-                handler.post(runnable);
-            } else {
-                handler.postDelayed(runnable, delay);
-            }
-        }
-
-        public void cleanupQueue() {
-            try {
-                syncLatch.await();
-                handler.removeCallbacksAndMessages(null);
-            } catch (Exception e) {
-
-            }
-        }
-
-        public void handleMessage(Message inputMessage) {
-
-        }
-
-        public void recycle() {
-            handler.getLooper().quit();
-        }
-
-        @Override
-        public void run() {
-            Looper.prepare();
-            handler = new Handler() {
-                @Override
-                public void handleMessage(Message msg) {
-                    DispatchQueue.this.handleMessage(msg);
-                }
-            };
-            syncLatch.countDown();
-            Looper.loop();
-        }
-    }
-
     public static class PhotoEntry {
         public int bucketId;
         public int imageId;
@@ -200,14 +117,18 @@ public class MediaController {
 
 
     private static Runnable refreshGalleryRunnable;
-    public static AlbumEntry allMediaAlbumEntry;
-    public static AlbumEntry allPhotosAlbumEntry;
-    public static AlbumEntry allVideosAlbumEntry;
-    public static ArrayList<AlbumEntry> allMediaAlbums = new ArrayList<>();
-    public static ArrayList<AlbumEntry> allPhotoAlbums = new ArrayList<>();
-    private static Runnable broadcastPhotosRunnable;
+    public static volatile AlbumEntry allMediaAlbumEntry;
+    public static volatile AlbumEntry allPhotosAlbumEntry;
+    public static volatile AlbumEntry allVideosAlbumEntry;
+    public static volatile ArrayList<AlbumEntry> allMediaAlbums = new ArrayList<>();
+    public static volatile ArrayList<AlbumEntry> allPhotoAlbums = new ArrayList<>();
+
+    static {
+        NotificationCenter.getGlobalInstance().setCoalescePolicy(NotificationCenter.albumsDidLoaded, NotificationCenter.COALESCE_LATEST, 0);
+        NotificationCenter.getGlobalInstance().setCollapseDuringAnimation(NotificationCenter.albumsDidLoaded, true);
+    }
 
-    public volatile DispatchQueue globalQueue = new DispatchQueue("globalQueue");
+    public volatile DispatchQueue globalQueue = new DispatchQueue("globalQueue", true);
 
     public void checkGallery() {
         if (Build.VERSION.SDK_INT < 24 || allPhotosAlbumEntry == null) {
@@ -548,30 +469,25 @@ public class MediaController {
                     return 0;
                 });
             }
-            broadcastNewPhotos(guid, mediaAlbumsSorted, photoAlbumsSorted, mediaCameraAlbumId, allMediaAlbum, allPhotosAlbum, allVideosAlbum, 0);
+            broadcastNewPhotos(guid, mediaAlbumsSorted, photoAlbumsSorted, mediaCameraAlbumId, allMediaAlbum, allPhotosAlbum, allVideosAlbum);
         });
         thread.setPriority(Thread.MIN_PRIORITY);
         thread.start();
     }
 
-    private static void broadcastNewPhotos(final int guid, final ArrayList<AlbumEntry> mediaAlbumsSorted, final ArrayList<AlbumEntry> photoAlbumsSorted, final Integer cameraAlbumIdFinal, final AlbumEntry allMediaAlbumFinal, final AlbumEntry allPhotosAlbumFinal, final AlbumEntry allVideosAlbumFinal, int delay) {
-        if (broadcastPhotosRunnable != null) {
-            AndroidUtilities.cancelRunOnUIThread(broadcastPhotosRunnable);
-        }
-        AndroidUtilities.runOnUIThread(broadcastPhotosRunnable = () -> {
-//            if (PhotoViewer.getInstance().isVisible()) {
-//                broadcastNewPhotos(guid, mediaAlbumsSorted, photoAlbumsSorted, cameraAlbumIdFinal, allMediaAlbumFinal, allPhotosAlbumFinal, allVideosAlbumFinal, 1000);
-//                return;
-//            }
-            allMediaAlbums = mediaAlbumsSorted;
-            allPhotoAlbums = photoAlbumsSorted;
-            broadcastPhotosRunnable = null;
-            allPhotosAlbumEntry = allPhotosAlbumFinal;
-            allMediaAlbumEntry = allMediaAlbumFinal;
-            allVideosAlbumEntry = allVideosAlbumFinal;
-            NotificationCenter.getInstance().postNotificationName(NotificationCenter.albumsDidLoaded, guid, mediaAlbumsSorted, photoAlbumsSorted, cameraAlbumIdFinal);
-
-        }, delay);
+    /**
+     * Publishes a finished load from the loader thread. albumsDidLoaded is coalesced as
+     * latest-wins, so a burst of loads reaches observers once, on the UI thread, and they read
+     * the albums from the fields set here. The debounce in the gallery observers stays: it
+     * throttles the MediaStore queries themselves, which run before anything is posted.
+     */
+    private static void broadcastNewPhotos(final int guid, final ArrayList<AlbumEntry> mediaAlbumsSorted, final ArrayList<AlbumEntry> photoAlbumsSorted, final Integer cameraAlbumIdFinal, final AlbumEntry allMediaAlbumFinal, final AlbumEntry allPhotosAlbumFinal, final AlbumEntry allVideosAlbumFinal) {
+        allMediaAlbums = mediaAlbumsSorted;
+        allPhotoAlbums = photoAlbumsSorted;
+        allPhotosAlbumEntry = allPhotosAlbumFinal;
+        allMediaAlbumEntry = allMediaAlbumFinal;
+        allVideosAlbumEntry = allVideosAlbumFinal;
+        NotificationCenter.getGlobalInstance().postEvent(NotificationCenter.albumsDidLoaded, guid, mediaAlbumsSorted, photoAlbumsSorted, cameraAlbumIdFinal);
     }
 
     private static boolean isRecognizedFormat(int colorFormat) {
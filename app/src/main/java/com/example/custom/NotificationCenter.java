@@ -8,160 +8,1583 @@
 
 package com.example.custom;
 
-import android.util.SparseArray;
-
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 public class NotificationCenter {
     private static int totalEvents = 1;
     public static final int cameraInitied = totalEvents++;
     public static final int albumsDidLoaded = totalEvents++;
     public static final int didReplacedPhotoInMemCache = totalEvents++;
-    private SparseArray<ArrayList<Object>> observers = new SparseArray<>();
-    private SparseArray<ArrayList<Object>> removeAfterBroadcast = new SparseArray<>();
-    private SparseArray<ArrayList<Object>> addAfterBroadcast = new SparseArray<>();
-    private ArrayList<DelayedPost> delayedPosts = new ArrayList<>(10);
+    private final ObserverList[] observers = new ObserverList[totalEvents];
+    @SuppressWarnings("unchecked")
+    private final ArrayList<Object>[] removeAfterBroadcast = new ArrayList[totalEvents];
+    @SuppressWarnings("unchecked")
+    private final ArrayList<Object>[] addAfterBroadcast = new ArrayList[totalEvents];
+    private boolean hasChangesAfterBroadcast;
+    private final DelayedPostQueue delayedPosts = new DelayedPostQueue(DELAYED_POSTS_CAPACITY, totalEvents);
+    private final Runnable replayDelayedPostsRunnable = this::runScheduledReplay;
+    private long replayFrameBudget = DEFAULT_REPLAY_FRAME_BUDGET;
+
+    private static final int DELAYED_POSTS_CAPACITY = 128;
+    private static final long DEFAULT_REPLAY_FRAME_BUDGET = 4_000_000L;
 
     private int broadcasting = 0;
-    private boolean animationInProgress;
+    private volatile boolean animationInProgress;
+
+    private volatile long[] allowedNotifications;
+
+    private final boolean copyOnWrite;
+    private final AtomicReferenceArray<ObserverList> sharedObservers;
+
+    private final WeakHashMap<Executor, DeliveryBatch> deliveryBatches = new WeakHashMap<>();
+
+    private volatile Instrumentation instrumentation;
+
+    private final ReferenceQueue<Object> clearedObservers = new ReferenceQueue<>();
+    private volatile boolean hasWeakObservers;
+    private final AtomicLongArray prunedObservers = new AtomicLongArray(totalEvents);
+    private final ConcurrentHashMap<String, AtomicLong> prunedObserversByClass = new ConcurrentHashMap<>();
+
+    public static final Executor UI_THREAD_EXECUTOR = AndroidUtilities::runOnUIThread;
+
+    /**
+     * Runs coalesced deliveries and replay slices on the UI thread. Local unit tests have no
+     * main looper and put in one they drive by hand.
+     */
+    interface UiScheduler {
+        void post(Runnable runnable, long delay);
+
+        void cancel(Runnable runnable);
+    }
+
+    static volatile UiScheduler uiScheduler = new UiScheduler() {
+        @Override
+        public void post(Runnable runnable, long delay) {
+            AndroidUtilities.runOnUIThread(runnable, delay);
+        }
+
+        @Override
+        public void cancel(Runnable runnable) {
+            AndroidUtilities.cancelRunOnUIThread(runnable);
+        }
+    };
+
+    public static final int COALESCE_NONE = 0;
+    public static final int COALESCE_LATEST = 1;
+    public static final int COALESCE_MERGE = 2;
+    public static final int COALESCE_DEBOUNCE = 3;
 
-    private int[] allowedNotifications;
+    private final AtomicReferenceArray<CoalescedEvent> coalescedEvents = new AtomicReferenceArray<>(totalEvents);
 
     public interface NotificationCenterDelegate {
         void didReceivedNotification(int id, Object... args);
     }
 
-    private class DelayedPost {
+    /**
+     * Typed counterpart of {@link NotificationCenterDelegate}. The event is pooled and only
+     * valid for the duration of the call, so receivers must copy what they need out of it.
+     */
+    public interface EventDelegate {
+        void didReceivedEvent(Event event);
+    }
+
+    /**
+     * Reusable payload of a typed post. Arguments are positional; primitives passed to the
+     * {@code postEvent} overloads are stored unboxed and read back with {@link #getLong} or
+     * {@link #getInt}. Varargs receivers of a typed post get an array built once per post, in
+     * which int arguments are boxed as Integer and long ones as Long.
+     */
+    public static final class Event {
+
+        private static final int MAX_ARGS = 4;
+
+        private int id;
+        private int count;
+        private int longMask;
+        private int intMask;
+        private final long[] longs = new long[MAX_ARGS];
+        private final Object[] objects = new Object[MAX_ARGS];
+        private Object[] args;
+        private EventPool pool;
+
+        public int getId() {
+            return id;
+        }
+
+        public int getCount() {
+            return args != null ? args.length : count;
+        }
+
+        public long getLong(int index) {
+            if (args != null) {
+                return ((Number) args[index]).longValue();
+            }
+            return longs[index];
+        }
+
+        public int getInt(int index) {
+            return (int) getLong(index);
+        }
+
+        @SuppressWarnings("unchecked")
+        public <T> T getObject(int index) {
+            if (args != null) {
+                return (T) args[index];
+            }
+            if ((longMask & (1 << index)) != 0) {
+                return (T) boxLong(index);
+            }
+            return (T) objects[index];
+        }
+
+        public Object[] toArgs() {
+            if (args == null) {
+                args = new Object[count];
+                for (int a = 0; a < count; a++) {
+                    args[a] = (longMask & (1 << a)) != 0 ? boxLong(a) : objects[a];
+                }
+            }
+            return args;
+        }
+
+        private Object boxLong(int index) {
+            if ((intMask & (1 << index)) != 0) {
+                return (int) longs[index];
+            }
+            return longs[index];
+        }
+
+        private Event putInt(int value) {
+            intMask |= 1 << count;
+            return putLong(value);
+        }
+
+        private Event putLong(long value) {
+            longMask |= 1 << count;
+            longs[count++] = value;
+            return this;
+        }
+
+        private Event putObject(Object value) {
+            objects[count++] = value;
+            return this;
+        }
+
+        private void copyFrom(Event event) {
+            id = event.id;
+            count = event.count;
+            longMask = event.longMask;
+            intMask = event.intMask;
+            args = event.args;
+            System.arraycopy(event.longs, 0, longs, 0, count);
+            System.arraycopy(event.objects, 0, objects, 0, count);
+        }
+
+        private void clear() {
+            for (int a = 0; a < count; a++) {
+                objects[a] = null;
+            }
+            id = 0;
+            count = 0;
+            longMask = 0;
+            intMask = 0;
+            args = null;
+        }
+
+        private void recycle() {
+            clear();
+            pool.release();
+        }
+
+        private static Event obtain(int id) {
+            Event event = eventPools.get().acquire();
+            event.id = id;
+            return event;
+        }
+
+        private static Event obtain(int id, Object[] args) {
+            Event event = obtain(id);
+            event.args = args;
+            return event;
+        }
+    }
+
+    private static class EventPool {
+
+        private Event[] events = new Event[4];
+        private int depth;
+
+        private Event acquire() {
+            if (depth == events.length) {
+                events = Arrays.copyOf(events, depth * 2);
+            }
+            Event event = events[depth];
+            if (event == null) {
+                events[depth] = event = new Event();
+                event.pool = this;
+            }
+            depth++;
+            return event;
+        }
+
+        private void release() {
+            depth--;
+        }
+    }
+
+    private static final ThreadLocal<EventPool> eventPools = new ThreadLocal<EventPool>() {
+        @Override
+        protected EventPool initialValue() {
+            return new EventPool();
+        }
+    };
+
+    public interface ArgsMerger {
+        Object[] merge(int id, Object[] pendingArgs, Object[] args);
+    }
+
+    private class CoalescedEvent implements Runnable {
+
+        private CoalescedEvent(int id, int policy, long interval, ArgsMerger merger) {
+            this.id = id;
+            this.policy = policy;
+            this.interval = interval;
+            this.merger = merger;
+        }
+
+        private final int id;
+        private final int policy;
+        private final long interval;
+        private final ArgsMerger merger;
+
+        private Object[] pendingArgs;
+        private final Event pendingEvent = new Event();
+        private final Event deliveredEvent = new Event();
+        private boolean hasPendingEvent;
+        private boolean pendingAllowDuringAnimation;
+        private boolean scheduled;
+
+        /**
+         * Takes either {@code args} or a typed {@code event}. A typed post is copied into
+         * {@link #pendingEvent}, so a burst of them keeps no arrays and boxes nothing; only
+         * {@link #COALESCE_MERGE} needs the args of both posts.
+         */
+        private void post(boolean allowDuringAnimation, Object[] args, Event event) {
+            boolean schedule;
+            synchronized (this) {
+                if (policy == COALESCE_MERGE && merger != null) {
+                    if (args == null) {
+                        args = event.toArgs();
+                    }
+                    pendingArgs = pendingArgs != null ? merger.merge(id, pendingArgs, args) : args;
+                } else if (event != null) {
+                    pendingEvent.copyFrom(event);
+                    hasPendingEvent = true;
+                    pendingArgs = null;
+                } else {
+                    pendingArgs = args;
+                    if (hasPendingEvent) {
+                        pendingEvent.clear();
+                        hasPendingEvent = false;
+                    }
+                }
+                pendingAllowDuringAnimation |= allowDuringAnimation;
+                schedule = !scheduled || policy == COALESCE_DEBOUNCE;
+                scheduled = true;
+            }
+            if (schedule) {
+                if (policy == COALESCE_DEBOUNCE) {
+                    uiScheduler.cancel(this);
+                }
+                uiScheduler.post(this, interval);
+            }
+        }
+
+        /**
+         * Moves a pending delivery to the next UI loop turn instead of the end of its window.
+         */
+        private void flush() {
+            synchronized (this) {
+                if (!scheduled) {
+                    return;
+                }
+            }
+            uiScheduler.cancel(this);
+            uiScheduler.post(this, 0);
+        }
+
+        private void cancel() {
+            synchronized (this) {
+                pendingArgs = null;
+                pendingEvent.clear();
+                hasPendingEvent = false;
+                scheduled = false;
+            }
+            uiScheduler.cancel(this);
+        }
+
+        @Override
+        public void run() {
+            Object[] args;
+            Event event = null;
+            boolean allowDuringAnimation;
+            synchronized (this) {
+                args = pendingArgs;
+                if (hasPendingEvent) {
+                    deliveredEvent.copyFrom(pendingEvent);
+                    pendingEvent.clear();
+                    hasPendingEvent = false;
+                    event = deliveredEvent;
+                }
+                allowDuringAnimation = pendingAllowDuringAnimation;
+                pendingArgs = null;
+                pendingAllowDuringAnimation = false;
+                scheduled = false;
+            }
+            if (args != null) {
+                dispatchNotification(id, allowDuringAnimation, args, null);
+            } else if (event != null) {
+                try {
+                    dispatchNotification(id, allowDuringAnimation, null, event);
+                } finally {
+                    event.clear();
+                }
+            }
+        }
+    }
+
+    /**
+     * Observers of one event in registration order. Removal leaves a null hole that dispatch
+     * skips, and an identity index makes add and remove O(1) regardless of the observer count.
+     * Holes are compacted once they make up half of the list; this never happens during a
+     * broadcast because removals are deferred until it ends. Weak entries are indexed by the
+     * identity of their referent without holding it, so they are found in O(1) too. Copy-on-write
+     * lists are mutated under their monitor, and every add or remove publishes a fresh
+     * {@link #snapshot} array, so posting never locks or copies.
+     */
+    private static class ObserverList {
+
+        private ObserverList(boolean copyOnWrite) {
+            this.copyOnWrite = copyOnWrite;
+        }
+
+        private final boolean copyOnWrite;
+        private final ArrayList<Object> entries = new ArrayList<>();
+        private final IdentityHashMap<Object, Integer> indexByObserver = new IdentityHashMap<>();
+        private final HashMap<Object, Integer> indexByReferent = new HashMap<>();
+        private final ReferentKey referentKey = new ReferentKey();
+        private int holes;
+        private volatile Object[] snapshot;
+
+        private Object[] snapshot() {
+            return snapshot;
+        }
+
+        private void publishSnapshot() {
+            if (!copyOnWrite) {
+                return;
+            }
+            int size = entries.size() - holes;
+            if (size == 0) {
+                snapshot = null;
+                return;
+            }
+            Object[] result = new Object[size];
+            int count = 0;
+            for (int a = 0, N = entries.size(); a < N; a++) {
+                Object entry = entries.get(a);
+                if (entry != null) {
+                    result[count++] = entry;
+                }
+            }
+            snapshot = result;
+        }
+
+        private boolean isEmpty() {
+            return indexByObserver.isEmpty() && indexByReferent.isEmpty();
+        }
+
+        private int indexOf(Object observer) {
+            Integer index = indexByObserver.get(observer);
+            if (index == null && observer != null && !indexByReferent.isEmpty()) {
+                referentKey.observer = observer;
+                index = indexByReferent.get(referentKey);
+                referentKey.observer = null;
+            }
+            return index != null ? index : -1;
+        }
+
+        private void add(Object observer, Object entry) {
+            if (indexOf(observer) >= 0) {
+                return;
+            }
+            putIndex(entry, entries.size());
+            entries.add(entry);
+            publishSnapshot();
+        }
+
+        private Object remove(Object observer) {
+            int index = indexOf(observer);
+            return index >= 0 ? removeAt(index) : null;
+        }
+
+        private Object removeEntry(Object entry) {
+            Integer index = entry instanceof WeakObserver ? indexByReferent.get(entry) : indexByObserver.get(unwrapObserver(entry));
+            return index != null && entries.get(index) == entry ? removeAt(index) : null;
+        }
+
+        private Object removeAt(int index) {
+            Object entry = entries.set(index, null);
+            if (entry instanceof WeakObserver) {
+                indexByReferent.remove(entry);
+            } else {
+                indexByObserver.remove(unwrapObserver(entry));
+            }
+            holes++;
+            if (isEmpty()) {
+                entries.clear();
+                holes = 0;
+            } else if (holes >= 8 && holes * 2 >= entries.size()) {
+                compact();
+            }
+            publishSnapshot();
+            return entry;
+        }
+
+        private void compact() {
+            int count = 0;
+            for (int a = 0, N = entries.size(); a < N; a++) {
+                Object entry = entries.get(a);
+                if (entry == null) {
+                    continue;
+                }
+                if (count != a) {
+                    entries.set(count, entry);
+                    putIndex(entry, count);
+                }
+                count++;
+            }
+            for (int a = entries.size() - 1; a >= count; a--) {
+                entries.remove(a);
+            }
+            holes = 0;
+        }
+
+        private void putIndex(Object entry, int index) {
+            if (entry instanceof WeakObserver) {
+                indexByReferent.put(entry, index);
+            } else {
+                indexByObserver.put(unwrapObserver(entry), index);
+            }
+        }
+    }
+
+    /**
+     * Hashes like the identity of its referent, which stays valid after the referent is
+     * cleared, but only equals itself. Lookups by observer go through {@link ReferentKey}.
+     */
+    private static class WeakObserver extends WeakReference<Object> {
+
+        private WeakObserver(Object observer, int id, ReferenceQueue<Object> queue) {
+            super(observer, queue);
+            this.id = id;
+            this.observerClass = observer.getClass().getName();
+            this.hash = System.identityHashCode(observer);
+        }
+
+        private final int id;
+        private final String observerClass;
+        private final int hash;
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /**
+     * Probe for the weak index: equal to a {@link WeakObserver} whose referent is
+     * {@link #observer}. Hash maps call equals on the probe, so the stored entries keep
+     * identity semantics.
+     */
+    private static class ReferentKey {
+
+        private Object observer;
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(observer);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj == this || obj instanceof WeakObserver && ((WeakObserver) obj).get() == observer;
+        }
+    }
+
+    private static class ExecutorObserver {
+
+        private ExecutorObserver(Object observer, Executor executor, DeliveryBatch batch) {
+            this.observer = observer;
+            this.executor = executor;
+            this.batch = batch;
+        }
+
+        private final Object observer;
+        private final Executor executor;
+        private final DeliveryBatch batch;
+        private volatile boolean removed;
+    }
+
+    private static class PendingDelivery {
 
-        private DelayedPost(int id, Object[] args) {
+        private PendingDelivery(ExecutorObserver target, int id, Object[] args) {
+            this.target = target;
             this.id = id;
             this.args = args;
         }
 
-        private int id;
-        private Object[] args;
+        private final ExecutorObserver target;
+        private final int id;
+        private final Object[] args;
     }
 
-    private static volatile NotificationCenter Instance = null;
+    /**
+     * Collects deliveries for one executor. However many observers and posts are pending,
+     * the executor only ever holds a single runnable that drains them in post order. Batches
+     * are looked up weakly by executor and do not reference it themselves, so a batch goes
+     * away together with the last observer registered on its executor.
+     */
+    private static class DeliveryBatch implements Runnable {
 
-    public static NotificationCenter getInstance() {
-        NotificationCenter localInstance = Instance;
+        private final ConcurrentLinkedQueue<PendingDelivery> pending = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+
+        private void enqueue(ExecutorObserver target, int id, Object[] args) {
+            pending.add(new PendingDelivery(target, id, args));
+            if (scheduled.compareAndSet(false, true)) {
+                target.executor.execute(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                PendingDelivery delivery;
+                while ((delivery = pending.poll()) != null) {
+                    if (!delivery.target.removed) {
+                        deliver(delivery.target.observer, delivery.id, delivery.args, null);
+                    }
+                }
+                scheduled.set(false);
+                if (pending.isEmpty() || !scheduled.compareAndSet(false, true)) {
+                    return;
+                }
+            }
+        }
+    }
+
+    public static class EventStats {
+        public int id;
+        public long postCount;
+        public int lastObserversCount;
+        public int maxObserversCount;
+        public long totalDispatchTime;
+        public long p99DispatchTime;
+        public String slowestObserver;
+        public long slowestObserverTime;
+        public long deferredCount;
+        public long totalDeferredTime;
+    }
+
+    private static class EventCounters {
+
+        private static final int HISTOGRAM_SIZE = 64;
+
+        private final int id;
+        private long postCount;
+        private int lastObserversCount;
+        private int maxObserversCount;
+        private long totalDispatchTime;
+        private final long[] dispatchTimeHistogram = new long[HISTOGRAM_SIZE];
+        private String slowestObserver;
+        private long slowestObserverTime;
+        private long deferredCount;
+        private long totalDeferredTime;
+
+        private EventCounters(int id) {
+            this.id = id;
+        }
+
+        private synchronized void onPost(int observersCount, long dispatchTime, Object slowest, long slowestTime) {
+            postCount++;
+            lastObserversCount = observersCount;
+            maxObserversCount = Math.max(maxObserversCount, observersCount);
+            totalDispatchTime += dispatchTime;
+            dispatchTimeHistogram[HISTOGRAM_SIZE - 1 - Long.numberOfLeadingZeros(Math.max(1, dispatchTime))]++;
+            if (slowest != null && slowestTime > slowestObserverTime) {
+                slowestObserverTime = slowestTime;
+                slowestObserver = slowest.getClass().getName();
+            }
+        }
+
+        private synchronized void onDeferred(long time) {
+            deferredCount++;
+            totalDeferredTime += time;
+        }
+
+        private synchronized EventStats snapshot() {
+            EventStats stats = new EventStats();
+            stats.id = id;
+            stats.postCount = postCount;
+            stats.lastObserversCount = lastObserversCount;
+            stats.maxObserversCount = maxObserversCount;
+            stats.totalDispatchTime = totalDispatchTime;
+            stats.slowestObserver = slowestObserver;
+            stats.slowestObserverTime = slowestObserverTime;
+            stats.deferredCount = deferredCount;
+            stats.totalDeferredTime = totalDeferredTime;
+            long threshold = postCount - postCount / 100;
+            long seen = 0;
+            for (int a = 0; a < HISTOGRAM_SIZE; a++) {
+                seen += dispatchTimeHistogram[a];
+                if (seen != 0 && seen >= threshold) {
+                    stats.p99DispatchTime = a >= HISTOGRAM_SIZE - 2 ? Long.MAX_VALUE : (1L << (a + 1)) - 1;
+                    break;
+                }
+            }
+            return stats;
+        }
+    }
+
+    /**
+     * Per-event counters, allocated lazily. Dispatch times go into power-of-two nanosecond
+     * buckets, so the reported p99 is the upper bound of the bucket it falls into.
+     */
+    private static class Instrumentation {
+
+        private final AtomicReferenceArray<EventCounters> counters = new AtomicReferenceArray<>(totalEvents);
+
+        private EventCounters getCounters(int id) {
+            if (id <= 0 || id >= counters.length()) {
+                id = 0;
+            }
+            EventCounters eventCounters = counters.get(id);
+            if (eventCounters == null) {
+                EventCounters newCounters = new EventCounters(id);
+                if (counters.compareAndSet(id, null, newCounters)) {
+                    eventCounters = newCounters;
+                } else {
+                    eventCounters = counters.get(id);
+                }
+            }
+            return eventCounters;
+        }
+    }
+
+    public static class DelayedPostStats {
+        public long delayedCount;
+        public long collapsedCount;
+        public long spilledCount;
+        public int pendingCount;
+        public long replayCount;
+        public long totalReplayTime;
+        public long lastReplayTime;
+        public int lastReplayFrames;
+
+        public float getCollapseRatio() {
+            return delayedCount != 0 ? collapsedCount / (float) delayedCount : 0;
+        }
+    }
+
+    /**
+     * Fixed-size ring of posts held back while an animation is running. Events marked as
+     * collapsible keep only their latest post: the older entry is turned into a hole and
+     * skipped on replay. Guarded by its own monitor. Every replay and every clear starts a new
+     * generation, so a slice scheduled for an earlier one neither delivers nor counts.
+     */
+    private static class DelayedPostQueue {
+
+        private DelayedPostQueue(int capacity, int eventsCount) {
+            ids = new int[capacity];
+            args = new Object[capacity][];
+            times = new long[capacity];
+            slotById = new int[eventsCount];
+            collapse = new boolean[eventsCount];
+            Arrays.fill(slotById, -1);
+        }
+
+        private final int[] ids;
+        private final Object[][] args;
+        private final long[] times;
+        private final int[] slotById;
+        private final boolean[] collapse;
+        private int head;
+        private int count;
+        private int holes;
+        private volatile boolean replaying;
+        private int generation;
+        private boolean replayScheduled;
+        private int replayFrames;
+        private long replayTime;
+        private final DelayedPostStats stats = new DelayedPostStats();
+
+        private int spilledId;
+        private Object[] spilledArgs;
+
+        private boolean isEmpty() {
+            return count == holes;
+        }
+
+        private void clear() {
+            Arrays.fill(args, null);
+            Arrays.fill(slotById, -1);
+            head = 0;
+            count = 0;
+            holes = 0;
+            replaying = false;
+            replayScheduled = false;
+            generation++;
+        }
+
+        private boolean add(int id, Object[] postArgs, long time) {
+            stats.delayedCount++;
+            boolean collapsible = id > 0 && id < collapse.length && collapse[id];
+            if (collapsible && slotById[id] >= 0) {
+                int slot = slotById[id];
+                ids[slot] = 0;
+                args[slot] = null;
+                slotById[id] = -1;
+                holes++;
+                stats.collapsedCount++;
+            }
+            if (count == ids.length) {
+                compact();
+            }
+            boolean spilled = false;
+            if (count == ids.length) {
+                spilledId = ids[head];
+                spilledArgs = args[head];
+                args[head] = null;
+                poll();
+                stats.spilledCount++;
+                spilled = true;
+            }
+            int slot = (head + count) % ids.length;
+            ids[slot] = id;
+            args[slot] = postArgs;
+            times[slot] = time;
+            count++;
+            if (collapsible) {
+                slotById[id] = slot;
+            }
+            return spilled;
+        }
+
+        private int poll() {
+            while (count > 0) {
+                int slot = head;
+                head = (head + 1) % ids.length;
+                count--;
+                int id = ids[slot];
+                if (id == 0) {
+                    holes--;
+                    continue;
+                }
+                if (id < slotById.length && slotById[id] == slot) {
+                    slotById[id] = -1;
+                }
+                return slot;
+            }
+            return -1;
+        }
+
+        private void compact() {
+            if (holes == 0) {
+                return;
+            }
+            int[] oldIds = ids.clone();
+            Object[][] oldArgs = args.clone();
+            long[] oldTimes = times.clone();
+            int oldHead = head;
+            int oldCount = count;
+            Arrays.fill(args, null);
+            head = 0;
+            count = 0;
+            holes = 0;
+            for (int a = 0; a < oldCount; a++) {
+                int slot = (oldHead + a) % ids.length;
+                int id = oldIds[slot];
+                if (id == 0) {
+                    continue;
+                }
+                ids[count] = id;
+                args[count] = oldArgs[slot];
+                times[count] = oldTimes[slot];
+                if (id < slotById.length && slotById[id] == slot) {
+                    slotById[id] = count;
+                }
+                count++;
+            }
+        }
+    }
+
+    public static final int MAX_ACCOUNT_COUNT = 3;
+
+    private static final AtomicReferenceArray<NotificationCenter> Instance = new AtomicReferenceArray<>(MAX_ACCOUNT_COUNT);
+    private static volatile NotificationCenter globalInstance;
+    private static final ConcurrentHashMap<String, NotificationCenter> scopedInstances = new ConcurrentHashMap<>();
+
+    public static NotificationCenter getInstance(int num) {
+        checkAccount(num);
+        NotificationCenter localInstance = Instance.get(num);
+        if (localInstance == null) {
+            synchronized (NotificationCenter.class) {
+                localInstance = Instance.get(num);
+                if (localInstance == null) {
+                    localInstance = new NotificationCenter(true);
+                    Instance.set(num, localInstance);
+                }
+            }
+        }
+        return localInstance;
+    }
+
+    public static NotificationCenter getGlobalInstance() {
+        NotificationCenter localInstance = globalInstance;
         if (localInstance == null) {
             synchronized (NotificationCenter.class) {
-                localInstance = Instance;
+                localInstance = globalInstance;
                 if (localInstance == null) {
-                    Instance = localInstance = new NotificationCenter();
+                    globalInstance = localInstance = new NotificationCenter(true);
                 }
             }
         }
         return localInstance;
     }
 
+    /**
+     * Returns the center for an arbitrary feature scope, so that unrelated subsystems do not
+     * share observer tables with the account or global instances.
+     */
+    public static NotificationCenter getInstance(String scope) {
+        NotificationCenter localInstance = scopedInstances.get(scope);
+        if (localInstance == null) {
+            NotificationCenter newInstance = new NotificationCenter(true);
+            localInstance = scopedInstances.putIfAbsent(scope, newInstance);
+            if (localInstance == null) {
+                localInstance = newInstance;
+            }
+        }
+        return localInstance;
+    }
+
+    /**
+     * Drops the center of account {@code num} with all of its observers. Later calls to
+     * {@link #getInstance(int)} start from an empty center.
+     */
+    public static void destroyInstance(int num) {
+        checkAccount(num);
+        NotificationCenter instance;
+        synchronized (NotificationCenter.class) {
+            instance = Instance.getAndSet(num, null);
+        }
+        if (instance != null) {
+            instance.cancelPendingPosts();
+        }
+    }
+
+    private static void checkAccount(int num) {
+        if (num < 0 || num >= MAX_ACCOUNT_COUNT) {
+            throw new IllegalArgumentException("account " + num + " is out of range [0, " + MAX_ACCOUNT_COUNT + ")");
+        }
+    }
+
+    public static void destroyInstance(String scope) {
+        NotificationCenter instance = scopedInstances.remove(scope);
+        if (instance != null) {
+            instance.cancelPendingPosts();
+        }
+    }
+
+    public NotificationCenter() {
+        this(false);
+    }
+
+    /**
+     * @param copyOnWrite if true, every event keeps an immutable snapshot of its observers
+     *     that each add/remove rebuilds and publishes atomically. Posting then only iterates a
+     *     snapshot and may be done from any thread; otherwise the center must be confined to
+     *     one thread.
+     */
+    public NotificationCenter(boolean copyOnWrite) {
+        this.copyOnWrite = copyOnWrite;
+        sharedObservers = copyOnWrite ? new AtomicReferenceArray<>(totalEvents) : null;
+    }
+
+    public boolean isCopyOnWrite() {
+        return copyOnWrite;
+    }
+
+    public void setCoalescePolicy(int id, int policy, long interval) {
+        setCoalescePolicy(id, policy, interval, null);
+    }
+
+    /**
+     * Collapses bursts of {@code id} into a single delivery on the UI thread.
+     * {@link #COALESCE_LATEST} and {@link #COALESCE_MERGE} deliver once per window of
+     * {@code interval} ms opened by the first post (0 - on the next UI loop turn), passing the
+     * last args or the result of {@code merger}; {@link #COALESCE_DEBOUNCE} delivers the last
+     * args once no post came for {@code interval} ms. A post still pending under the previous
+     * policy is delivered on the next UI loop turn.
+     */
+    public void setCoalescePolicy(int id, int policy, long interval, ArgsMerger merger) {
+        if (id <= 0 || id >= coalescedEvents.length()) {
+            return;
+        }
+        if (policy == COALESCE_MERGE && merger == null) {
+            throw new IllegalArgumentException("merger == null");
+        }
+        CoalescedEvent event = policy == COALESCE_NONE ? null : new CoalescedEvent(id, policy, Math.max(0, interval), merger);
+        CoalescedEvent previous = coalescedEvents.getAndSet(id, event);
+        if (previous != null) {
+            previous.flush();
+        }
+    }
+
     public void setAllowedNotificationsDutingAnimation(int notifications[]) {
-        allowedNotifications = notifications;
+        if (notifications == null) {
+            allowedNotifications = null;
+            return;
+        }
+        long[] mask = new long[(totalEvents + 63) >>> 6];
+        for (int a = 0; a < notifications.length; a++) {
+            int id = notifications[a];
+            if (id > 0 && id < totalEvents) {
+                mask[id >>> 6] |= 1L << id;
+            }
+        }
+        allowedNotifications = mask;
+    }
+
+    /**
+     * Marks {@code id} so that only its latest post is kept while an animation is running.
+     */
+    public void setCollapseDuringAnimation(int id, boolean value) {
+        synchronized (delayedPosts) {
+            if (id > 0 && id < delayedPosts.collapse.length) {
+                delayedPosts.collapse[id] = value;
+            }
+        }
+    }
+
+    /**
+     * Sets how much time in nanoseconds one UI loop turn may spend replaying delayed posts
+     * once the animation has finished. The rest is replayed on the following turns.
+     */
+    public void setReplayFrameBudget(long nanos) {
+        replayFrameBudget = Math.max(0, nanos);
+    }
+
+    /**
+     * Starts or stops collecting per-event dispatch statistics. Enabling it again starts
+     * from zero. While disabled a post only pays for one volatile read.
+     */
+    public void setInstrumentationEnabled(boolean enabled) {
+        if (enabled) {
+            if (instrumentation == null) {
+                instrumentation = new Instrumentation();
+            }
+        } else {
+            instrumentation = null;
+        }
+    }
+
+    public ArrayList<EventStats> getInstrumentationSnapshot() {
+        ArrayList<EventStats> result = new ArrayList<>();
+        Instrumentation instr = instrumentation;
+        if (instr == null) {
+            return result;
+        }
+        for (int a = 0; a < instr.counters.length(); a++) {
+            EventCounters counters = instr.counters.get(a);
+            if (counters != null) {
+                result.add(counters.snapshot());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * One line per event:
+     * {@code id posts obs=last/max total=ms p99=us slow=Class:us deferred=count/ms}.
+     */
+    public String dumpInstrumentation() {
+        StringBuilder builder = new StringBuilder();
+        ArrayList<EventStats> snapshot = getInstrumentationSnapshot();
+        for (int a = 0; a < snapshot.size(); a++) {
+            EventStats stats = snapshot.get(a);
+            builder.append(stats.id).append(' ').append(stats.postCount)
+                    .append(" obs=").append(stats.lastObserversCount).append('/').append(stats.maxObserversCount)
+                    .append(" total=").append(stats.totalDispatchTime / 1000000)
+                    .append(" p99=").append(stats.p99DispatchTime == Long.MAX_VALUE ? -1 : stats.p99DispatchTime / 1000);
+            if (stats.slowestObserver != null) {
+                String name = stats.slowestObserver;
+                builder.append(" slow=").append(name.substring(name.lastIndexOf('.') + 1)).append(':').append(stats.slowestObserverTime / 1000);
+            }
+            if (stats.deferredCount != 0) {
+                builder.append(" deferred=").append(stats.deferredCount).append('/').append(stats.totalDeferredTime / 1000000);
+            }
+            builder.append('\n');
+        }
+        return builder.toString();
+    }
+
+    public DelayedPostStats getDelayedPostStats() {
+        DelayedPostStats result = new DelayedPostStats();
+        synchronized (delayedPosts) {
+            DelayedPostStats stats = delayedPosts.stats;
+            result.delayedCount = stats.delayedCount;
+            result.collapsedCount = stats.collapsedCount;
+            result.spilledCount = stats.spilledCount;
+            result.pendingCount = delayedPosts.count - delayedPosts.holes;
+            result.replayCount = stats.replayCount;
+            result.totalReplayTime = stats.totalReplayTime;
+            result.lastReplayTime = stats.lastReplayTime;
+            result.lastReplayFrames = stats.lastReplayFrames;
+        }
+        return result;
     }
 
     public void setAnimationInProgress(boolean value) {
-        animationInProgress = value;
-        if (!animationInProgress && !delayedPosts.isEmpty()) {
-            for (int a = 0; a < delayedPosts.size(); a++) {
-                DelayedPost delayedPost = delayedPosts.get(a);
-                postNotificationNameInternal(delayedPost.id, true, delayedPost.args);
+        boolean replay;
+        synchronized (delayedPosts) {
+            animationInProgress = value;
+            replay = !animationInProgress && !delayedPosts.isEmpty() && !delayedPosts.replaying;
+            if (replay) {
+                delayedPosts.replaying = true;
+                delayedPosts.generation++;
+                delayedPosts.replayFrames = 0;
+                delayedPosts.replayTime = 0;
             }
-            delayedPosts.clear();
+        }
+        if (replay) {
+            replayDelayedPosts();
         }
     }
 
-    public boolean isAnimationInProgress() {
-        return animationInProgress;
+    private void runScheduledReplay() {
+        synchronized (delayedPosts) {
+            if (!delayedPosts.replayScheduled) {
+                return;
+            }
+            delayedPosts.replayScheduled = false;
+        }
+        replayDelayedPosts();
     }
 
-    public void postNotificationName(int id, Object... args) {
-        boolean allowDuringAnimation = false;
-        if (allowedNotifications != null) {
-            for (int a = 0; a < allowedNotifications.length; a++) {
-                if (allowedNotifications[a] == id) {
-                    allowDuringAnimation = true;
+    private void replayDelayedPosts() {
+        long startTime = System.nanoTime();
+        long deadline = startTime + replayFrameBudget;
+        boolean finished = false;
+        int generation;
+        synchronized (delayedPosts) {
+            generation = delayedPosts.generation;
+        }
+        while (true) {
+            int id;
+            Object[] args;
+            long delayedTime;
+            synchronized (delayedPosts) {
+                if (delayedPosts.generation != generation) {
+                    return;
+                }
+                if (animationInProgress) {
+                    delayedPosts.replaying = false;
+                    break;
+                }
+                int slot = delayedPosts.poll();
+                if (slot < 0) {
+                    delayedPosts.replaying = false;
+                    finished = true;
                     break;
                 }
+                id = delayedPosts.ids[slot];
+                args = delayedPosts.args[slot];
+                delayedTime = delayedPosts.times[slot];
+                delayedPosts.args[slot] = null;
+            }
+            Instrumentation instr = instrumentation;
+            if (instr != null && delayedTime != 0) {
+                instr.getCounters(id).onDeferred(System.nanoTime() - delayedTime);
+            }
+            dispatchNotification(id, true, args, null);
+            if (System.nanoTime() >= deadline) {
+                break;
+            }
+        }
+        long time = System.nanoTime() - startTime;
+        synchronized (delayedPosts) {
+            if (delayedPosts.generation != generation) {
+                return;
+            }
+            delayedPosts.replayFrames++;
+            delayedPosts.replayTime += time;
+            if (finished || !delayedPosts.replaying) {
+                DelayedPostStats stats = delayedPosts.stats;
+                stats.replayCount++;
+                stats.totalReplayTime += delayedPosts.replayTime;
+                stats.lastReplayTime = delayedPosts.replayTime;
+                stats.lastReplayFrames = delayedPosts.replayFrames;
+                return;
             }
+            delayedPosts.replayScheduled = true;
         }
+        uiScheduler.post(replayDelayedPostsRunnable, 0);
+    }
+
+    public boolean isAnimationInProgress() {
+        return animationInProgress;
+    }
+
+    public void postNotificationName(int id, Object... args) {
+        long[] mask = allowedNotifications;
+        boolean allowDuringAnimation = mask != null && id > 0 && id < totalEvents && (mask[id >>> 6] & (1L << id)) != 0;
         postNotificationNameInternal(id, allowDuringAnimation, args);
     }
 
     public void postNotificationNameInternal(int id, boolean allowDuringAnimation, Object... args) {
-        if (!allowDuringAnimation && animationInProgress) {
-            DelayedPost delayedPost = new DelayedPost(id, args);
-            delayedPosts.add(delayedPost);
+        if (id > 0 && id < coalescedEvents.length()) {
+            CoalescedEvent coalescedEvent = coalescedEvents.get(id);
+            if (coalescedEvent != null) {
+                coalescedEvent.post(allowDuringAnimation, args, null);
+                return;
+            }
+        }
+        dispatchNotification(id, allowDuringAnimation, args, null);
+    }
+
+    public void postEvent(int id) {
+        postEventInternal(Event.obtain(id));
+    }
+
+    public void postEvent(int id, int a) {
+        postEventInternal(Event.obtain(id).putInt(a));
+    }
+
+    public void postEvent(int id, long a) {
+        postEventInternal(Event.obtain(id).putLong(a));
+    }
+
+    public void postEvent(int id, Object a) {
+        postEventInternal(Event.obtain(id).putObject(a));
+    }
 
+    public void postEvent(int id, int a, int b) {
+        postEventInternal(Event.obtain(id).putInt(a).putInt(b));
+    }
+
+    public void postEvent(int id, long a, long b) {
+        postEventInternal(Event.obtain(id).putLong(a).putLong(b));
+    }
+
+    public void postEvent(int id, int a, Object b) {
+        postEventInternal(Event.obtain(id).putInt(a).putObject(b));
+    }
+
+    public void postEvent(int id, long a, Object b) {
+        postEventInternal(Event.obtain(id).putLong(a).putObject(b));
+    }
+
+    public void postEvent(int id, Object a, Object b) {
+        postEventInternal(Event.obtain(id).putObject(a).putObject(b));
+    }
+
+    public void postEvent(int id, Object a, Object b, Object c) {
+        postEventInternal(Event.obtain(id).putObject(a).putObject(b).putObject(c));
+    }
+
+    public void postEvent(int id, int a, Object b, Object c, Object d) {
+        postEventInternal(Event.obtain(id).putInt(a).putObject(b).putObject(c).putObject(d));
+    }
+
+    public void postEvent(int id, long a, Object b, Object c, Object d) {
+        postEventInternal(Event.obtain(id).putLong(a).putObject(b).putObject(c).putObject(d));
+    }
+
+    private void postEventInternal(Event event) {
+        try {
+            int id = event.id;
+            long[] mask = allowedNotifications;
+            boolean allowDuringAnimation = mask != null && id > 0 && id < totalEvents && (mask[id >>> 6] & (1L << id)) != 0;
+            CoalescedEvent coalescedEvent = id > 0 && id < coalescedEvents.length() ? coalescedEvents.get(id) : null;
+            if (coalescedEvent != null) {
+                coalescedEvent.post(allowDuringAnimation, null, event);
+            } else {
+                dispatchNotification(id, allowDuringAnimation, null, event);
+            }
+        } finally {
+            event.recycle();
+        }
+    }
+
+    /**
+     * Either {@code args} or {@code event} is set; typed posts only build an args array when
+     * the post has to outlive the call or reaches a varargs receiver.
+     */
+    private void dispatchNotification(int id, boolean allowDuringAnimation, Object[] args, Event event) {
+        if (!allowDuringAnimation && (animationInProgress || delayedPosts.replaying)) {
+            if (args == null) {
+                args = event.toArgs();
+            }
+            int spilledId = 0;
+            Object[] spilledArgs = null;
+            boolean delayed = false;
+            long time = instrumentation != null ? System.nanoTime() : 0;
+            synchronized (delayedPosts) {
+                if (animationInProgress || delayedPosts.replaying) {
+                    if (delayedPosts.add(id, args, time)) {
+                        spilledId = delayedPosts.spilledId;
+                        spilledArgs = delayedPosts.spilledArgs;
+                        delayedPosts.spilledArgs = null;
+                    }
+                    delayed = true;
+                }
+            }
+            if (spilledId != 0) {
+                dispatchNotification(spilledId, true, spilledArgs, null);
+            }
+            if (delayed) {
+                return;
+            }
+        }
+        Instrumentation instr = instrumentation;
+        if (copyOnWrite) {
+            Object[] objects = getObserversSnapshot(id);
+            if (instr != null) {
+                deliverInstrumented(instr, objects, objects != null ? objects.length : 0, id, args, event);
+            } else if (objects != null) {
+                for (int a = 0; a < objects.length; a++) {
+                    deliver(objects[a], id, args, event);
+                }
+            }
             return;
         }
         broadcasting++;
-        ArrayList<Object> objects = observers.get(id);
-        if (objects != null && !objects.isEmpty()) {
-            for (int a = 0; a < objects.size(); a++) {
-                Object obj = objects.get(a);
-                ((NotificationCenterDelegate) obj).didReceivedNotification(id, args);
+        ObserverList objects = id > 0 && id < observers.length ? observers[id] : null;
+        if (instr != null) {
+            deliverInstrumented(instr, objects != null ? objects.entries.toArray() : null, objects != null ? objects.entries.size() : 0, id, args, event);
+        } else if (objects != null && !objects.isEmpty()) {
+            for (int a = 0, N = objects.entries.size(); a < N; a++) {
+                Object entry = objects.entries.get(a);
+                if (entry != null) {
+                    deliver(entry, id, args, event);
+                }
             }
         }
         broadcasting--;
         if (broadcasting == 0) {
-            if (removeAfterBroadcast.size() != 0) {
-                for (int a = 0; a < removeAfterBroadcast.size(); a++) {
-                    int key = removeAfterBroadcast.keyAt(a);
-                    ArrayList<Object> arrayList = removeAfterBroadcast.get(key);
-                    for (int b = 0; b < arrayList.size(); b++) {
-                        removeObserver(arrayList.get(b), key);
+            if (hasChangesAfterBroadcast) {
+                hasChangesAfterBroadcast = false;
+                for (int a = 0; a < removeAfterBroadcast.length; a++) {
+                    ArrayList<Object> arrayList = removeAfterBroadcast[a];
+                    if (arrayList != null) {
+                        removeAfterBroadcast[a] = null;
+                        for (int b = 0; b < arrayList.size(); b++) {
+                            removeObserver(arrayList.get(b), a);
+                        }
                     }
                 }
-                removeAfterBroadcast.clear();
-            }
-            if (addAfterBroadcast.size() != 0) {
-                for (int a = 0; a < addAfterBroadcast.size(); a++) {
-                    int key = addAfterBroadcast.keyAt(a);
-                    ArrayList<Object> arrayList = addAfterBroadcast.get(key);
-                    for (int b = 0; b < arrayList.size(); b++) {
-                        addObserver(arrayList.get(b), key);
+                for (int a = 0; a < addAfterBroadcast.length; a++) {
+                    ArrayList<Object> arrayList = addAfterBroadcast[a];
+                    if (arrayList != null) {
+                        addAfterBroadcast[a] = null;
+                        for (int b = 0; b < arrayList.size(); b++) {
+                            addObserverInternal(arrayList.get(b), a);
+                        }
                     }
                 }
-                addAfterBroadcast.clear();
             }
         }
     }
 
     public void addObserver(Object observer, int id) {
+        addObserverInternal(observer, id);
+    }
+
+    /**
+     * Registers {@code observer} so that its callbacks for {@code id} run on {@code executor}
+     * instead of the posting thread. Pass {@link #UI_THREAD_EXECUTOR}, a {@link DispatchQueue}
+     * or any other executor.
+     */
+    public void addObserver(Object observer, int id, Executor executor) {
+        if (executor == null) {
+            addObserverInternal(observer, id);
+            return;
+        }
+        DeliveryBatch batch;
+        synchronized (deliveryBatches) {
+            batch = deliveryBatches.get(executor);
+            if (batch == null) {
+                deliveryBatches.put(executor, batch = new DeliveryBatch());
+            }
+        }
+        addObserverInternal(new ExecutorObserver(observer, executor, batch), id);
+    }
+
+    /**
+     * Registers {@code observer} through a weak reference. If it is collected without calling
+     * {@link #removeObserver}, dispatch skips it and the next add or remove on this center
+     * prunes the entry and counts it in {@link #getPrunedObserversCount}.
+     */
+    public void addWeakObserver(Object observer, int id) {
+        if (id <= 0 || id >= totalEvents) {
+            return;
+        }
+        hasWeakObservers = true;
+        addObserverInternal(new WeakObserver(observer, id, clearedObservers), id);
+    }
+
+    public long getPrunedObserversCount() {
+        long count = 0;
+        for (int a = 0; a < prunedObservers.length(); a++) {
+            count += prunedObservers.get(a);
+        }
+        return count;
+    }
+
+    public long getPrunedObserversCount(int id) {
+        if (id <= 0 || id >= prunedObservers.length()) {
+            return 0;
+        }
+        return prunedObservers.get(id);
+    }
+
+    /**
+     * @return pruned observer counts keyed by observer class name, i.e. the classes that were
+     *     registered weakly and never removed.
+     */
+    public HashMap<String, Long> getPrunedObserverClasses() {
+        HashMap<String, Long> result = new HashMap<>();
+        for (HashMap.Entry<String, AtomicLong> entry : prunedObserversByClass.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().get());
+        }
+        return result;
+    }
+
+    /**
+     * Runs on registration changes rather than on posts, which stay free of the reference
+     * queue lock.
+     */
+    private void pruneClearedObservers() {
+        if (!hasWeakObservers || !copyOnWrite && broadcasting != 0) {
+            return;
+        }
+        WeakObserver cleared;
+        while ((cleared = (WeakObserver) clearedObservers.poll()) != null) {
+            boolean removed;
+            if (copyOnWrite) {
+                removed = removeShared(cleared.id, null, cleared);
+            } else {
+                ObserverList objects = observers[cleared.id];
+                removed = objects != null && objects.removeEntry(cleared) != null;
+            }
+            if (removed) {
+                prunedObservers.incrementAndGet(cleared.id);
+                AtomicLong counter = prunedObserversByClass.get(cleared.observerClass);
+                if (counter == null) {
+                    AtomicLong newCounter = new AtomicLong();
+                    counter = prunedObserversByClass.putIfAbsent(cleared.observerClass, newCounter);
+                    if (counter == null) {
+                        counter = newCounter;
+                    }
+                }
+                counter.incrementAndGet();
+            }
+        }
+    }
+
+    private void addObserverInternal(Object entry, int id) {
+        pruneClearedObservers();
+        Object observer = unwrapObserver(entry);
+        if (copyOnWrite) {
+            ObserverList objects = getSharedObservers(id, true);
+            if (objects != null) {
+                synchronized (objects) {
+                    objects.add(observer, entry);
+                }
+            }
+            return;
+        }
+        if (id <= 0 || id >= observers.length) {
+            return;
+        }
         if (broadcasting != 0) {
-            ArrayList<Object> arrayList = addAfterBroadcast.get(id);
+            ArrayList<Object> arrayList = addAfterBroadcast[id];
             if (arrayList == null) {
-                arrayList = new ArrayList<>();
-                addAfterBroadcast.put(id, arrayList);
+                addAfterBroadcast[id] = arrayList = new ArrayList<>();
             }
-            arrayList.add(observer);
+            arrayList.add(entry);
+            hasChangesAfterBroadcast = true;
             return;
         }
-        ArrayList<Object> objects = observers.get(id);
+        ObserverList objects = observers[id];
         if (objects == null) {
-            observers.put(id, (objects = new ArrayList<>()));
-        }
-        if (objects.contains(observer)) {
-            return;
+            observers[id] = objects = new ObserverList(false);
         }
-        objects.add(observer);
+        objects.add(observer, entry);
     }
 
     public void removeObserver(Object observer, int id) {
+        pruneClearedObservers();
+        if (copyOnWrite) {
+            removeShared(id, observer, null);
+            return;
+        }
+        if (id <= 0 || id >= observers.length) {
+            return;
+        }
         if (broadcasting != 0) {
-            ArrayList<Object> arrayList = removeAfterBroadcast.get(id);
+            ArrayList<Object> arrayList = removeAfterBroadcast[id];
             if (arrayList == null) {
-                arrayList = new ArrayList<>();
-                removeAfterBroadcast.put(id, arrayList);
+                removeAfterBroadcast[id] = arrayList = new ArrayList<>();
             }
             arrayList.add(observer);
+            hasChangesAfterBroadcast = true;
             return;
         }
-        ArrayList<Object> objects = observers.get(id);
+        ObserverList objects = observers[id];
         if (objects != null) {
-            objects.remove(observer);
+            Object entry = objects.remove(observer);
+            if (entry != null) {
+                onObserverRemoved(entry);
+            }
+        }
+    }
+
+    /**
+     * Removes either the registration of {@code observer} or exactly {@code entry} from the
+     * copy-on-write registry.
+     */
+    private boolean removeShared(int id, Object observer, Object entry) {
+        ObserverList objects = getSharedObservers(id, false);
+        if (objects == null) {
+            return false;
+        }
+        Object removed;
+        synchronized (objects) {
+            removed = entry != null ? objects.removeEntry(entry) : objects.remove(observer);
+        }
+        if (removed == null) {
+            return false;
+        }
+        onObserverRemoved(removed);
+        return true;
+    }
+
+    private static void deliverInstrumented(Instrumentation instr, Object[] objects, int count, int id, Object[] args, Event event) {
+        EventCounters counters = instr.getCounters(id);
+        long slowestTime = 0;
+        Object slowest = null;
+        int observersCount = 0;
+        long startTime = System.nanoTime();
+        for (int a = 0; a < count; a++) {
+            Object entry = objects[a];
+            if (entry == null) {
+                continue;
+            }
+            long time = System.nanoTime();
+            deliver(entry, id, args, event);
+            time = System.nanoTime() - time;
+            observersCount++;
+            if (time > slowestTime) {
+                slowestTime = time;
+                slowest = unwrapObserver(entry);
+            }
+        }
+        counters.onPost(observersCount, System.nanoTime() - startTime, slowest, slowestTime);
+    }
+
+    private static void deliver(Object entry, int id, Object[] args, Event event) {
+        if (entry instanceof WeakObserver) {
+            Object observer = ((WeakObserver) entry).get();
+            if (observer != null) {
+                deliver(observer, id, args, event);
+            }
+        } else if (entry instanceof ExecutorObserver) {
+            ExecutorObserver executorObserver = (ExecutorObserver) entry;
+            executorObserver.batch.enqueue(executorObserver, id, args != null ? args : event.toArgs());
+        } else if (entry instanceof EventDelegate) {
+            if (event != null) {
+                ((EventDelegate) entry).didReceivedEvent(event);
+            } else {
+                Event wrapped = Event.obtain(id, args);
+                try {
+                    ((EventDelegate) entry).didReceivedEvent(wrapped);
+                } finally {
+                    wrapped.recycle();
+                }
+            }
+        } else {
+            ((NotificationCenterDelegate) entry).didReceivedNotification(id, args != null ? args : event.toArgs());
+        }
+    }
+
+    private static Object unwrapObserver(Object entry) {
+        if (entry instanceof ExecutorObserver) {
+            return ((ExecutorObserver) entry).observer;
+        } else if (entry instanceof WeakObserver) {
+            return ((WeakObserver) entry).get();
+        }
+        return entry;
+    }
+
+    private static void onObserverRemoved(Object entry) {
+        if (entry instanceof ExecutorObserver) {
+            ((ExecutorObserver) entry).removed = true;
+        }
+    }
+
+    private void cancelPendingPosts() {
+        for (int a = 0; a < coalescedEvents.length(); a++) {
+            CoalescedEvent coalescedEvent = coalescedEvents.getAndSet(a, null);
+            if (coalescedEvent != null) {
+                coalescedEvent.cancel();
+            }
+        }
+        uiScheduler.cancel(replayDelayedPostsRunnable);
+        synchronized (delayedPosts) {
+            delayedPosts.clear();
+        }
+    }
+
+    private Object[] getObserversSnapshot(int id) {
+        ObserverList objects = getSharedObservers(id, false);
+        return objects != null ? objects.snapshot() : null;
+    }
+
+    private ObserverList getSharedObservers(int id, boolean create) {
+        if (id <= 0 || id >= sharedObservers.length()) {
+            return null;
+        }
+        ObserverList objects = sharedObservers.get(id);
+        if (objects == null && create) {
+            ObserverList newObjects = new ObserverList(true);
+            objects = sharedObservers.compareAndSet(id, null, newObjects) ? newObjects : sharedObservers.get(id);
         }
+        return objects;
     }
 }
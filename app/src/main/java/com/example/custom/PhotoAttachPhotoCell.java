@@ -167,6 +167,11 @@ public class PhotoAttachPhotoCell extends FrameLayout {
         return checkFrame;
     }
 
+    public static String getImageFilter(int itemSize) {
+        int size = (int) (itemSize / AndroidUtilities.density);
+        return size + "_" + size;
+    }
+
     public View getVideoInfoContainer() {
         return videoInfoContainer;
     }
@@ -184,15 +189,12 @@ public class PhotoAttachPhotoCell extends FrameLayout {
         } else {
             videoInfoContainer.setVisibility(INVISIBLE);
         }
-        if (photoEntry.thumbPath != null) {
-            imageView.setImage(photoEntry.thumbPath, null, getContext().getResources().getDrawable(R.drawable.ic_launcher_background));
-        } else if (photoEntry.path != null) {
-            if (photoEntry.isVideo) {
-                imageView.setImage("vthumb://" + photoEntry.imageId + ":" + photoEntry.path, null, getContext().getResources().getDrawable(R.drawable.ic_launcher_background));
-            } else {
+        ImageLocation imageLocation = ImageLocation.getForPhoto(photoEntry);
+        if (imageLocation != null) {
+            if (photoEntry.thumbPath == null && !photoEntry.isVideo) {
                 imageView.setOrientation(photoEntry.orientation, true);
-                imageView.setImage("thumb://" + photoEntry.imageId + ":" + photoEntry.path, null, getContext().getResources().getDrawable(R.drawable.ic_launcher_background));
             }
+            imageView.setImage(imageLocation.path, getImageFilter(itemSize), getContext().getResources().getDrawable(R.drawable.ic_launcher_background));
         } else {
             imageView.setImageDrawable(getContext().getResources().getDrawable(R.drawable.ic_launcher_background));
         }
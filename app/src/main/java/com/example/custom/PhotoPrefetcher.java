@@ -0,0 +1,121 @@
+package com.example.custom;
+
+import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.GridLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
+
+/**
+ * Warms ImageLoader for the rows just past the visible range of the photo grid, in the
+ * direction the user scrolls. The faster the scroll, the more rows are prefetched. When the
+ * direction flips, or the visible range jumps past everything prefetched, the prefetches nobody
+ * looked at yet are cancelled. The pixels prefetched but not yet scrolled into view are counted
+ * across scroll events and never exceed {@link #MEM_CACHE_FRACTION} of the memory cache.
+ */
+public class PhotoPrefetcher extends RecyclerView.OnScrollListener {
+
+    public interface PhotoProvider {
+        MediaController.PhotoEntry getPhotoEntry(int adapterPosition);
+    }
+
+    private static final int MAX_ROWS = 6;
+    private static final float MEM_CACHE_FRACTION = 0.25f;
+
+    private final GridLayoutManager layoutManager;
+    private final PhotoProvider provider;
+    private final int itemSize;
+    private final String filter;
+
+    private DispatchQueue.TaskGroup group = new DispatchQueue.TaskGroup(DispatchQueue.PRIORITY_PREFETCH);
+    private int direction;
+    private float velocity;
+    private int frontier = -1;
+    private long outstandingBytes;
+
+    public PhotoPrefetcher(GridLayoutManager layoutManager, int itemSize, PhotoProvider provider) {
+        this.layoutManager = layoutManager;
+        this.itemSize = itemSize;
+        this.provider = provider;
+        filter = PhotoAttachPhotoCell.getImageFilter(itemSize);
+    }
+
+    public void cancel() {
+        ImageLoader.getInstance().cancelPrefetch(group);
+        group = new DispatchQueue.TaskGroup(DispatchQueue.PRIORITY_PREFETCH);
+        frontier = -1;
+        velocity = 0;
+        outstandingBytes = 0;
+    }
+
+    @Override
+    public void onScrolled(@NonNull RecyclerView recyclerView, int dx, int dy) {
+        if (dy == 0 || itemSize <= 0) {
+            return;
+        }
+        int newDirection = dy > 0 ? 1 : -1;
+        if (newDirection != direction) {
+            if (direction != 0) {
+                cancel();
+            }
+            direction = newDirection;
+        }
+        int edge = direction > 0 ? layoutManager.findLastVisibleItemPosition() : layoutManager.findFirstVisibleItemPosition();
+        if (edge == RecyclerView.NO_POSITION) {
+            return;
+        }
+        long itemBytes = (long) itemSize * itemSize * 4;
+        if (frontier >= 0) {
+            int ahead = direction > 0 ? frontier - edge : edge - frontier;
+            if (ahead < 0) {
+                cancel();
+            } else {
+                outstandingBytes = ahead * itemBytes;
+            }
+        }
+        velocity = velocity * 0.7f + Math.abs(dy) * 0.3f;
+
+        int spanCount = layoutManager.getSpanCount();
+        int rows = Math.max(1, Math.min(MAX_ROWS, 1 + (int) (velocity * 10 / itemSize)));
+        long maxBytes = (long) (ImageLoader.getInstance().getMemCacheMaxSize() * MEM_CACHE_FRACTION);
+        int count = (int) Math.min(rows * spanCount, (maxBytes - outstandingBytes) / itemBytes);
+        if (count <= 0) {
+            return;
+        }
+
+        int start;
+        int end;
+        if (direction > 0) {
+            start = Math.max(edge, frontier) + 1;
+            end = Math.min(start + count - 1, layoutManager.getItemCount() - 1);
+        } else {
+            end = (frontier >= 0 ? Math.min(edge, frontier) : edge) - 1;
+            start = Math.max(end - count + 1, 0);
+        }
+        if (start > end) {
+            return;
+        }
+        ImageLoader imageLoader = ImageLoader.getInstance();
+        if (direction > 0) {
+            for (int a = start; a <= end; a++) {
+                prefetch(imageLoader, a);
+            }
+            frontier = end;
+        } else {
+            for (int a = end; a >= start; a--) {
+                prefetch(imageLoader, a);
+            }
+            frontier = start;
+        }
+        outstandingBytes += (long) (end - start + 1) * itemBytes;
+    }
+
+    private void prefetch(ImageLoader imageLoader, int position) {
+        MediaController.PhotoEntry photoEntry = provider.getPhotoEntry(position);
+        if (photoEntry == null) {
+            return;
+        }
+        ImageLocation imageLocation = ImageLocation.getForPhoto(photoEntry);
+        if (imageLocation != null) {
+            imageLoader.prefetchImage(imageLocation.path, filter, group);
+        }
+    }
+}
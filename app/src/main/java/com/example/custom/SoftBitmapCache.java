@@ -0,0 +1,115 @@
+package com.example.custom;
+
+import android.graphics.drawable.BitmapDrawable;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Second memory tier behind memCache. It keeps recently evicted images through soft references,
+ * so scrolling back can take them out again instead of decoding, while the garbage collector
+ * may still drop them at any time. The byte budget counts only entries not yet collected; when
+ * it is exceeded the oldest images go to {@link BitmapPool}.
+ */
+public class SoftBitmapCache {
+
+    private static class Entry extends SoftReference<BitmapDrawable> {
+
+        final String key;
+        final int size;
+
+        Entry(String key, BitmapDrawable value, int size, ReferenceQueue<BitmapDrawable> queue) {
+            super(value, queue);
+            this.key = key;
+            this.size = size;
+        }
+    }
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>();
+    private final ReferenceQueue<BitmapDrawable> collected = new ReferenceQueue<>();
+    private int maxSize;
+    private int size;
+
+    public SoftBitmapCache(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    public synchronized void put(String key, BitmapDrawable value, int valueSize) {
+        pruneCollected();
+        if (maxSize <= 0 || valueSize > maxSize) {
+            BitmapPool.getInstance().put(value.getBitmap());
+            return;
+        }
+        Entry previous = entries.put(key, new Entry(key, value, valueSize, collected));
+        if (previous != null) {
+            size -= previous.size;
+            previous.clear();
+        }
+        size += valueSize;
+        trimToSize(maxSize);
+    }
+
+    /**
+     * Takes the image for {@code key} out of this tier, or returns null if it was never here
+     * or has been collected.
+     */
+    public synchronized BitmapDrawable remove(String key) {
+        pruneCollected();
+        Entry entry = entries.remove(key);
+        if (entry == null) {
+            return null;
+        }
+        size -= entry.size;
+        BitmapDrawable value = entry.get();
+        entry.clear();
+        if (value == null || value.getBitmap() == null || value.getBitmap().isRecycled()) {
+            return null;
+        }
+        return value;
+    }
+
+    public synchronized boolean contains(String key) {
+        Entry entry = entries.get(key);
+        return entry != null && entry.get() != null;
+    }
+
+    public synchronized void setMaxSize(int value) {
+        maxSize = value;
+        pruneCollected();
+        trimToSize(maxSize);
+    }
+
+    public synchronized int maxSize() {
+        return maxSize;
+    }
+
+    public synchronized void clear() {
+        trimToSize(-1);
+    }
+
+    private void trimToSize(int maxSize) {
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (size > maxSize && iterator.hasNext()) {
+            Entry entry = iterator.next();
+            iterator.remove();
+            size -= entry.size;
+            BitmapDrawable value = entry.get();
+            entry.clear();
+            if (value != null) {
+                BitmapPool.getInstance().put(value.getBitmap());
+            }
+        }
+    }
+
+    private void pruneCollected() {
+        Entry entry;
+        while ((entry = (Entry) collected.poll()) != null) {
+            if (entries.get(entry.key) == entry) {
+                entries.remove(entry.key);
+                size -= entry.size;
+            }
+        }
+    }
+}
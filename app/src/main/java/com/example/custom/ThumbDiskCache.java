@@ -0,0 +1,281 @@
+package com.example.custom;
+
+import android.graphics.Bitmap;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Disk tier for gallery thumbnails that survives process death. Scaled bitmaps are appended
+ * as raw pixels to one data file, so a hit costs no decode. Readers share a single read-only
+ * mapping of that file, which is only replaced once a hit lies beyond it because the file has
+ * grown. A second append-only file holds the index (key, offset, length) and is loaded on open.
+ * When the data file would grow past {@link #MAX_SIZE} both files are started over.
+ * <p>
+ * Writes are serialized, reads are not: a thumbnail is read without waiting for a put, and the
+ * index only learns about an entry once its pixels and its record are both on disk.
+ */
+public class ThumbDiskCache {
+
+    private static final long MAX_SIZE = 32 * 1024 * 1024;
+    private static final int HEADER_SIZE = 12;
+    private static final int CONFIG_RGB_565 = 0;
+    private static final int CONFIG_ARGB_8888 = 1;
+
+    private final File dataPath;
+    private final File indexPath;
+    private final Object writeSync = new Object();
+    private volatile Store store;
+
+    /**
+     * One incarnation of the two files. Starting over replaces the whole store, so a reader
+     * never combines an index entry with another incarnation's data.
+     */
+    private static class Store {
+
+        private RandomAccessFile dataFile;
+        private FileChannel dataChannel;
+        private RandomAccessFile indexFile;
+        private long dataLength;
+        private final ConcurrentHashMap<String, long[]> index = new ConcurrentHashMap<>();
+        private volatile MappedByteBuffer mapping;
+
+        private ByteBuffer getMapping(long end) throws IOException {
+            MappedByteBuffer localMapping = mapping;
+            if (localMapping == null || localMapping.capacity() < end) {
+                synchronized (this) {
+                    localMapping = mapping;
+                    if (localMapping == null || localMapping.capacity() < end) {
+                        mapping = localMapping = dataChannel.map(FileChannel.MapMode.READ_ONLY, 0, dataChannel.size());
+                    }
+                }
+            }
+            return localMapping.duplicate();
+        }
+
+        private void close() {
+            try {
+                if (dataFile != null) {
+                    dataFile.close();
+                }
+                if (indexFile != null) {
+                    indexFile.close();
+                }
+            } catch (Exception ignore) {
+
+            }
+        }
+    }
+
+    private static volatile ThumbDiskCache Instance = null;
+
+    public static ThumbDiskCache getInstance() {
+        ThumbDiskCache localInstance = Instance;
+        if (localInstance == null) {
+            synchronized (ThumbDiskCache.class) {
+                localInstance = Instance;
+                if (localInstance == null) {
+                    Instance = localInstance = new ThumbDiskCache(ApplicationLoader.applicationContext.getCacheDir());
+                }
+            }
+        }
+        return localInstance;
+    }
+
+    public ThumbDiskCache(File dir) {
+        dataPath = new File(dir, "thumbs.data");
+        indexPath = new File(dir, "thumbs.index");
+        synchronized (writeSync) {
+            open();
+        }
+    }
+
+    public static String getKey(long imageId, boolean video, String filter, long modified) {
+        return imageId + (video ? "v" : "i") + "_" + modified + "@" + filter;
+    }
+
+    /**
+     * Opens both files and loads the index up to its last complete, valid record; the rest is
+     * cut off. If the files cannot be opened at all they are deleted and started over.
+     */
+    private void open() {
+        Store newStore = openStore();
+        if (newStore == null) {
+            dataPath.delete();
+            indexPath.delete();
+            newStore = openStore();
+        }
+        store = newStore;
+    }
+
+    private Store openStore() {
+        Store newStore = new Store();
+        try {
+            newStore.dataFile = new RandomAccessFile(dataPath, "rw");
+            newStore.dataChannel = newStore.dataFile.getChannel();
+            newStore.dataLength = newStore.dataFile.length();
+            newStore.indexFile = new RandomAccessFile(indexPath, "rw");
+            RandomAccessFile indexFile = newStore.indexFile;
+            long validLength = 0;
+            try {
+                while (true) {
+                    String key = indexFile.readUTF();
+                    long offset = indexFile.readLong();
+                    int length = indexFile.readInt();
+                    if (offset < 0 || length < HEADER_SIZE || offset + length > newStore.dataLength) {
+                        break;
+                    }
+                    newStore.index.put(key, new long[]{offset, length});
+                    validLength = indexFile.getFilePointer();
+                }
+            } catch (IOException ignore) {
+
+            }
+            indexFile.setLength(validLength);
+            indexFile.seek(validLength);
+            return newStore;
+        } catch (Exception ignore) {
+            newStore.close();
+            return null;
+        }
+    }
+
+    /**
+     * Deletes both files and opens empty ones. Must be called under {@link #writeSync}.
+     */
+    private void reset() {
+        Store oldStore = store;
+        store = null;
+        if (oldStore != null) {
+            oldStore.close();
+        }
+        dataPath.delete();
+        indexPath.delete();
+        open();
+    }
+
+    public void clear() {
+        synchronized (writeSync) {
+            reset();
+        }
+    }
+
+    public boolean contains(String key) {
+        Store localStore = store;
+        return localStore != null && localStore.index.containsKey(key);
+    }
+
+    public Bitmap get(String key) {
+        Store localStore = store;
+        if (localStore == null) {
+            return null;
+        }
+        long[] entry = localStore.index.get(key);
+        if (entry == null) {
+            return null;
+        }
+        Bitmap bitmap = null;
+        try {
+            ByteBuffer buffer = localStore.getMapping(entry[0] + entry[1]);
+            buffer.limit((int) (entry[0] + entry[1]));
+            buffer.position((int) entry[0]);
+            int width = buffer.getInt();
+            int height = buffer.getInt();
+            int config = buffer.getInt();
+            Bitmap.Config bitmapConfig = config == CONFIG_ARGB_8888 ? Bitmap.Config.ARGB_8888 : Bitmap.Config.RGB_565;
+            bitmap = BitmapPool.getInstance().get(width, height, bitmapConfig);
+            if (bitmap != null) {
+                bitmap.reconfigure(width, height, bitmapConfig);
+            } else {
+                bitmap = Bitmap.createBitmap(width, height, bitmapConfig);
+            }
+            bitmap.copyPixelsFromBuffer(buffer);
+            return bitmap;
+        } catch (Throwable ignore) {
+            BitmapPool.getInstance().put(bitmap);
+            localStore.index.remove(key, entry);
+            return null;
+        }
+    }
+
+    public void put(String key, Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled() || contains(key)) {
+            return;
+        }
+        int config;
+        if (bitmap.getConfig() == Bitmap.Config.ARGB_8888) {
+            config = CONFIG_ARGB_8888;
+        } else if (bitmap.getConfig() == Bitmap.Config.RGB_565) {
+            config = CONFIG_RGB_565;
+        } else {
+            return;
+        }
+        int length = HEADER_SIZE + bitmap.getByteCount();
+        if (length > MAX_SIZE / 16) {
+            return;
+        }
+        ByteBuffer buffer;
+        try {
+            buffer = ByteBuffer.allocate(length);
+            buffer.putInt(bitmap.getWidth());
+            buffer.putInt(bitmap.getHeight());
+            buffer.putInt(config);
+            bitmap.copyPixelsToBuffer(buffer);
+            buffer.flip();
+        } catch (Throwable ignore) {
+            return;
+        }
+        synchronized (writeSync) {
+            Store localStore = store;
+            if (localStore == null || localStore.index.containsKey(key)) {
+                return;
+            }
+            if (localStore.dataLength + length > MAX_SIZE) {
+                reset();
+                localStore = store;
+                if (localStore == null) {
+                    return;
+                }
+            }
+            long offset = localStore.dataLength;
+            try {
+                while (buffer.hasRemaining()) {
+                    localStore.dataChannel.write(buffer, offset + buffer.position());
+                }
+            } catch (IOException e) {
+                try {
+                    localStore.dataChannel.truncate(offset);
+                } catch (IOException e2) {
+                    reset();
+                }
+                return;
+            }
+            localStore.dataLength = offset + length;
+            RandomAccessFile indexFile = localStore.indexFile;
+            long indexLength = -1;
+            try {
+                indexLength = indexFile.getFilePointer();
+                indexFile.writeUTF(key);
+                indexFile.writeLong(offset);
+                indexFile.writeInt(length);
+            } catch (IOException e) {
+                try {
+                    if (indexLength < 0) {
+                        throw e;
+                    }
+                    indexFile.setLength(indexLength);
+                    indexFile.seek(indexLength);
+                } catch (IOException e2) {
+                    reset();
+                }
+                return;
+            }
+            localStore.index.put(key, new long[]{offset, length});
+        }
+    }
+}
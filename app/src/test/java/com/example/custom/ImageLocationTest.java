@@ -0,0 +1,44 @@
+package com.example.custom;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ImageLocationTest {
+
+    @Test
+    public void getForPhoto_prefersGalleryThumbnail() {
+        MediaController.PhotoEntry photoEntry = new MediaController.PhotoEntry(0, 7, 0, "/sdcard/DCIM/a.jpg", 90, false);
+        photoEntry.thumbPath = "/sdcard/DCIM/.thumbnails/7.jpg";
+        assertEquals("/sdcard/DCIM/.thumbnails/7.jpg", ImageLocation.getForPhoto(photoEntry).path);
+    }
+
+    @Test
+    public void getForPhoto_pointsToOriginalWithoutThumbnail() {
+        MediaController.PhotoEntry photo = new MediaController.PhotoEntry(0, 7, 0, "/sdcard/DCIM/a.jpg", 90, false);
+        MediaController.PhotoEntry video = new MediaController.PhotoEntry(0, 8, 0, "/sdcard/DCIM/b.mp4", 1000, true);
+        assertEquals("thumb://7:/sdcard/DCIM/a.jpg", ImageLocation.getForPhoto(photo).path);
+        assertEquals("vthumb://8:/sdcard/DCIM/b.mp4", ImageLocation.getForPhoto(video).path);
+    }
+
+    @Test
+    public void getForPhoto_withoutPathIsNull() {
+        MediaController.PhotoEntry photoEntry = new MediaController.PhotoEntry(0, 7, 0, null, 0, false);
+        assertNull(ImageLocation.getForPhoto(photoEntry));
+    }
+
+    /**
+     * The prefetcher passes a path and a filter, a receiver keeps the location it was given.
+     * Both must end up with the key the decoded image is published under.
+     */
+    @Test
+    public void getKey_sameForPrefetchAndReceiver() {
+        MediaController.PhotoEntry photoEntry = new MediaController.PhotoEntry(0, 7, 0, "/sdcard/DCIM/a.jpg", 90, false);
+        String prefetchKey = ImageLocation.getKey(ImageLocation.getForPhoto(photoEntry).path, "100_100");
+        ImageLocation receiverLocation = ImageLocation.getForPath(ImageLocation.getForPhoto(photoEntry).path);
+        assertEquals("thumb://7:/sdcard/DCIM/a.jpg@100_100", prefetchKey);
+        assertEquals(prefetchKey, ImageLocation.getKey(receiverLocation.path, "100_100"));
+        assertNotEquals(prefetchKey, ImageLocation.getKey(receiverLocation.path, "50_50"));
+        assertEquals(receiverLocation.path, ImageLocation.getKey(receiverLocation.path, null));
+    }
+}
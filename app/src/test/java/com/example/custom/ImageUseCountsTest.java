@@ -0,0 +1,199 @@
+package com.example.custom;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class ImageUseCountsTest {
+
+    /**
+     * An LruCache wired to the use counts the way ImageLoader wires memCache: capacity
+     * evictions are reported, explicit removals are not, and demoted values are recorded.
+     */
+    private static class Tiers extends LruCache<String> implements ImageUseCounts.Tiers<String> {
+
+        final ImageUseCounts<String> counts = new ImageUseCounts<>(this);
+        final ConcurrentHashMap<String, Integer> demoted = new ConcurrentHashMap<>();
+        final AtomicReference<String> error = new AtomicReference<>();
+
+        Tiers(int maxSize) {
+            super(maxSize);
+        }
+
+        @Override
+        protected void entryRemoved(boolean evicted, String key, String oldValue, String newValue) {
+            if (evicted) {
+                counts.onEvicted(key, oldValue);
+            }
+        }
+
+        @Override
+        public void demote(String key, String value) {
+            if (counts.get(key) != 0) {
+                error.compareAndSet(null, "demoted " + value + " while in use");
+            }
+            if (contains(key)) {
+                error.compareAndSet(null, "demoted " + value + " while cached");
+            }
+            demoted.merge(value, 1, Integer::sum);
+        }
+
+        int demotedCount(String value) {
+            Integer count = demoted.get(value);
+            return count != null ? count : 0;
+        }
+    }
+
+    @Test
+    public void release_whileCachedLeavesItToEviction() {
+        Tiers tiers = new Tiers(1);
+        tiers.put("a", "a#0");
+        tiers.counts.increment("a");
+        tiers.counts.increment("a");
+        tiers.counts.release("a", "a#0");
+        tiers.counts.release("a", "a#0");
+        assertEquals(0, tiers.demotedCount("a#0"));
+
+        tiers.put("b", "b#0");
+        assertEquals(1, tiers.demotedCount("a#0"));
+        assertNull(tiers.error.get());
+    }
+
+    @Test
+    public void eviction_whileInUseLeavesItToLastRelease() {
+        Tiers tiers = new Tiers(1);
+        tiers.put("a", "a#0");
+        tiers.counts.increment("a");
+        tiers.counts.increment("a");
+        tiers.put("b", "b#0");
+        assertEquals(0, tiers.demotedCount("a#0"));
+
+        tiers.counts.release("a", "a#0");
+        assertEquals(0, tiers.demotedCount("a#0"));
+        tiers.counts.release("a", "a#0");
+        assertEquals(1, tiers.demotedCount("a#0"));
+        assertNull(tiers.error.get());
+    }
+
+    @Test
+    public void explicitRemoval_isNeverDemoted() {
+        Tiers tiers = new Tiers(1);
+        tiers.put("a", "a#0");
+        tiers.counts.increment("a");
+        tiers.remove("a");
+        tiers.counts.release("a", "a#0");
+        tiers.put("b", "b#0");
+        tiers.put("c", "c#0");
+        assertEquals(0, tiers.demotedCount("a#0"));
+        assertEquals(1, tiers.demotedCount("b#0"));
+    }
+
+    @Test
+    public void release_afterKeyWasPutBackDoesNotDemote() {
+        Tiers tiers = new Tiers(1);
+        tiers.put("a", "a#0");
+        tiers.counts.increment("a");
+        tiers.put("b", "b#0");
+        tiers.put("a", "a#1");
+        tiers.counts.release("a", "a#0");
+        assertEquals(0, tiers.demotedCount("a#0"));
+        assertNull(tiers.error.get());
+    }
+
+    /**
+     * ImageReceiver.setImage releases the image it shows before the load path finds the same
+     * key in memCache and setImageBitmapByKey counts it again. In between the count is zero,
+     * but the key is cached, so the image must not be demoted.
+     */
+    @Test
+    public void receiver_settingSameImageAgainKeepsItCounted() {
+        Tiers tiers = new Tiers(1);
+        tiers.put("a", "a#0");
+        tiers.counts.increment("a");
+
+        tiers.counts.release("a", "a#0");
+        assertTrue(tiers.contains("a"));
+        tiers.counts.increment("a");
+        assertEquals(1, tiers.counts.get("a"));
+
+        tiers.put("b", "b#0");
+        assertEquals(0, tiers.demotedCount("a#0"));
+        tiers.counts.release("a", "a#0");
+        assertEquals(1, tiers.demotedCount("a#0"));
+        assertNull(tiers.error.get());
+    }
+
+    /**
+     * Switching a receiver to another image releases the old one exactly once. If memCache
+     * already evicted it, that release is what demotes it.
+     */
+    @Test
+    public void receiver_switchingImagesReleasesTheOldOne() {
+        Tiers tiers = new Tiers(1);
+        tiers.put("a", "a#0");
+        tiers.counts.increment("a");
+        tiers.put("b", "b#0");
+        assertEquals(0, tiers.demotedCount("a#0"));
+
+        tiers.counts.release("a", "a#0");
+        tiers.counts.increment("b");
+        assertEquals(1, tiers.demotedCount("a#0"));
+        assertEquals(0, tiers.counts.get("a"));
+        assertEquals(1, tiers.counts.get("b"));
+        assertNull(tiers.error.get());
+    }
+
+    /**
+     * Receivers take and release an image while other threads keep evicting it. Whichever
+     * side comes last must demote each image exactly once, never while it is still counted.
+     */
+    @Test
+    public void concurrentReleaseAndEviction_demoteEachImageOnce() throws Exception {
+        final int rounds = 2000;
+        final int receivers = 4;
+        Tiers tiers = new Tiers(2);
+        for (int round = 0; round < rounds; round++) {
+            final String value = "a#" + round;
+            tiers.put("a", value);
+            for (int a = 0; a < receivers; a++) {
+                tiers.counts.increment("a");
+            }
+            CountDownLatch start = new CountDownLatch(1);
+            ArrayList<Thread> threads = new ArrayList<>();
+            for (int a = 0; a < receivers; a++) {
+                threads.add(new Thread(() -> {
+                    awaitQuietly(start);
+                    tiers.counts.release("a", value);
+                }));
+            }
+            final int fillerRound = round;
+            threads.add(new Thread(() -> {
+                awaitQuietly(start);
+                tiers.put("b", "b#" + fillerRound);
+                tiers.put("c", "c#" + fillerRound);
+            }));
+            for (Thread thread : threads) {
+                thread.start();
+            }
+            start.countDown();
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            assertEquals(value, 1, tiers.demotedCount(value));
+        }
+        assertNull(tiers.error.get());
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException ignore) {
+
+        }
+    }
+}
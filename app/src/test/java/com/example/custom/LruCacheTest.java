@@ -0,0 +1,395 @@
+package com.example.custom;
+
+import org.junit.Test;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class LruCacheTest {
+
+    private static final int MAX_SIZE = 500;
+    private static final int KEYS_COUNT = 2000;
+    private static final int OPERATIONS_PER_THREAD = 50000;
+
+    private static class CountingCache extends LruCache<String> {
+
+        final AtomicLong removedCount = new AtomicLong();
+        final ConcurrentHashMap<String, Boolean> removedValues = new ConcurrentHashMap<>();
+        final AtomicReference<String> error = new AtomicReference<>();
+
+        CountingCache(int maxSize, int policy) {
+            super(maxSize, policy);
+        }
+
+        @Override
+        protected void entryRemoved(boolean evicted, String key, String oldValue, String newValue) {
+            removedCount.incrementAndGet();
+            if (!oldValue.startsWith(key + "#")) {
+                error.compareAndSet(null, "removed " + oldValue + " under " + key);
+            }
+            if (removedValues.put(oldValue, true) != null) {
+                error.compareAndSet(null, "removed twice " + oldValue);
+            }
+        }
+    }
+
+    @Test
+    public void concurrentAccess_lru() throws Exception {
+        for (int threads : new int[]{1, 4, 8}) {
+            runConcurrentAccess(LruCache.POLICY_LRU, threads);
+        }
+    }
+
+    @Test
+    public void concurrentAccess_tinyLfu() throws Exception {
+        for (int threads : new int[]{1, 4, 8}) {
+            runConcurrentAccess(LruCache.POLICY_TINY_LFU, threads);
+        }
+    }
+
+    /**
+     * Threads mix gets, puts and removes over a key space four times the cache size, half of
+     * the keys carrying filters. Afterwards every value ever put must either still be cached or
+     * have been reported to entryRemoved exactly once.
+     */
+    private void runConcurrentAccess(int policy, int threadsCount) throws Exception {
+        CountingCache cache = new CountingCache(MAX_SIZE, policy);
+        AtomicLong putCount = new AtomicLong();
+        AtomicLong getCount = new AtomicLong();
+        CountDownLatch start = new CountDownLatch(1);
+        ArrayList<Thread> threads = new ArrayList<>();
+        for (int a = 0; a < threadsCount; a++) {
+            int threadIndex = a;
+            Thread thread = new Thread(() -> {
+                Random random = new Random(threadIndex);
+                try {
+                    start.await();
+                } catch (InterruptedException ignore) {
+                    return;
+                }
+                for (int b = 0; b < OPERATIONS_PER_THREAD; b++) {
+                    String key = getKey(random.nextInt(KEYS_COUNT));
+                    int operation = random.nextInt(10);
+                    if (operation < 6) {
+                        String value = cache.get(key);
+                        getCount.incrementAndGet();
+                        if (value != null && !value.startsWith(key + "#")) {
+                            cache.error.compareAndSet(null, "got " + value + " for " + key);
+                        }
+                    } else if (operation < 9) {
+                        cache.put(key, key + "#" + threadIndex + "_" + b);
+                        putCount.incrementAndGet();
+                    } else {
+                        cache.remove(key);
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        start.countDown();
+        for (int a = 0; a < threads.size(); a++) {
+            threads.get(a).join();
+        }
+        String message = "policy=" + policy + " threads=" + threadsCount;
+        assertNull(message, cache.error.get());
+
+        LruCache.CacheStats stats = cache.getStats();
+        assertTrue(message, cache.size() <= MAX_SIZE);
+        assertEquals(message, putCount.get(), stats.putCount);
+        assertEquals(message, putCount.get(), cache.size() + cache.removedCount.get());
+        assertEquals(message, cache.removedCount.get(), stats.evictionCount + stats.explicitRemoveCount + stats.replaceCount);
+        assertEquals(message, getCount.get(), stats.hitCount + stats.missCount);
+
+        for (int a = 0; a < KEYS_COUNT; a += 2) {
+            String base = "base" + a;
+            ArrayList<String> filters = cache.getFilterKeys(base);
+            int cachedCount = 0;
+            for (int b = 0; b < 4; b++) {
+                if (cache.contains(base + "@" + b)) {
+                    cachedCount++;
+                    assertTrue(message, filters != null && filters.contains(String.valueOf(b)));
+                }
+            }
+            assertEquals(message, cachedCount, filters != null ? filters.size() : 0);
+        }
+
+        cache.evictAll();
+        assertEquals(message, 0, cache.size());
+        assertEquals(message, putCount.get(), cache.removedCount.get());
+        assertNull(message, cache.error.get());
+    }
+
+    @Test
+    public void lru_evictsLeastRecentlyUsed() {
+        ArrayList<String> evicted = new ArrayList<>();
+        LruCache<Integer> cache = new LruCache<Integer>(3) {
+            @Override
+            protected void entryRemoved(boolean wasEvicted, String key, Integer oldValue, Integer newValue) {
+                if (wasEvicted) {
+                    evicted.add(key);
+                }
+            }
+        };
+        cache.put("a", 1);
+        cache.put("b", 2);
+        cache.put("c", 3);
+        assertEquals(Integer.valueOf(1), cache.get("a"));
+        cache.put("d", 4);
+        cache.moveToFront("c");
+        cache.put("e", 5);
+        assertEquals(Arrays.asList("b", "a"), evicted);
+        assertNull(cache.get("a"));
+        assertTrue(cache.contains("c"));
+        assertEquals(3, cache.size());
+    }
+
+    @Test
+    public void sizeOf_boundsTotalSize() {
+        LruCache<Integer> cache = new LruCache<Integer>(10) {
+            @Override
+            protected int sizeOf(String key, Integer value) {
+                return value;
+            }
+        };
+        cache.put("a", 4);
+        cache.put("b", 4);
+        cache.put("c", 4);
+        assertEquals(8, cache.size());
+        assertFalse(cache.contains("a"));
+        cache.put("b", 1);
+        assertEquals(5, cache.size());
+        assertEquals(Integer.valueOf(4), cache.remove("c"));
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void tinyLfu_keepsFrequentEntriesThroughScan() {
+        LruCache<Integer> cache = new LruCache<>(100, LruCache.POLICY_TINY_LFU);
+        for (int a = 0; a < 100; a++) {
+            cache.put("hot" + a, a);
+        }
+        for (int round = 0; round < 6; round++) {
+            for (int a = 0; a < 100; a++) {
+                cache.get("hot" + a);
+            }
+        }
+        for (int a = 0; a < 1000; a++) {
+            cache.put("scan" + a, a);
+        }
+        int hotCount = 0;
+        for (int a = 0; a < 100; a++) {
+            if (cache.contains("hot" + a)) {
+                hotCount++;
+            }
+        }
+        assertTrue("hot entries left: " + hotCount, hotCount >= 90);
+        assertEquals(100, cache.size());
+    }
+
+    @Test
+    public void stats_countEveryOperation() {
+        LruCache<Integer> cache = new LruCache<>(4);
+        cache.put("a", 1);
+        cache.put("b", 2);
+        cache.put("a", 3);
+        cache.get("a");
+        cache.get("b");
+        cache.get("c");
+        cache.remove("b");
+        cache.remove("b");
+        for (int a = 0; a < 6; a++) {
+            cache.put("k" + a, a);
+        }
+        LruCache.CacheStats stats = cache.getStats();
+        assertEquals(2, stats.hitCount);
+        assertEquals(1, stats.missCount);
+        assertEquals(9, stats.putCount);
+        assertEquals(1, stats.replaceCount);
+        assertEquals(1, stats.explicitRemoveCount);
+        assertEquals(3, stats.evictionCount);
+        assertEquals(4, stats.entryCount);
+        assertEquals(4, stats.size);
+        assertEquals(4, stats.maxSize);
+        assertEquals(2 / 3f, stats.getHitRate(), 0.001f);
+        assertEquals(9, stats.entrySizeHistogram[0]);
+        long evictionAges = 0;
+        for (int a = 0; a < stats.evictionAgeHistogram.length; a++) {
+            evictionAges += stats.evictionAgeHistogram[a];
+        }
+        assertEquals(3, evictionAges);
+
+        cache.evictAll();
+        stats = cache.getStats();
+        assertEquals(3, stats.evictionCount);
+        assertEquals(5, stats.explicitRemoveCount);
+        assertEquals(0, stats.entryCount);
+    }
+
+    @Test
+    public void resize_evictsOnShrinkAndAllowsGrowth() {
+        for (int policy = LruCache.POLICY_LRU; policy <= LruCache.POLICY_TINY_LFU; policy++) {
+            ArrayList<String> evicted = new ArrayList<>();
+            LruCache<Integer> cache = new LruCache<Integer>(10, policy) {
+                @Override
+                protected void entryRemoved(boolean wasEvicted, String key, Integer oldValue, Integer newValue) {
+                    evicted.add(key);
+                }
+            };
+            for (int a = 0; a < 10; a++) {
+                cache.put("k" + a, a);
+            }
+            cache.resize(4);
+            assertEquals(4, cache.maxSize());
+            assertEquals(4, cache.size());
+            assertEquals(6, evicted.size());
+            assertEquals(6, cache.getStats().evictionCount);
+
+            cache.resize(20);
+            for (int a = 10; a < 26; a++) {
+                cache.put("k" + a, a);
+            }
+            assertEquals(20, cache.size());
+            assertEquals(6, evicted.size());
+        }
+    }
+
+    @Test
+    public void tinyLfu_admitsOnTies() {
+        LruCache<Integer> cache = new LruCache<>(100, LruCache.POLICY_TINY_LFU);
+        for (int a = 0; a < 100; a++) {
+            cache.put("old" + a, a);
+        }
+        for (int a = 0; a < 100; a++) {
+            cache.put("new" + a, a);
+        }
+        for (int a = 0; a < 100; a++) {
+            assertTrue("new" + a, cache.contains("new" + a));
+        }
+        assertEquals(100, cache.size());
+    }
+
+    /**
+     * Replays a trace in which every third access is a key never seen again and the rest
+     * follow a skewed distribution over a hot set slightly larger than the cache.
+     */
+    @Test
+    public void tinyLfu_traceHitRate() {
+        float lruHitRate = replayTrace(LruCache.POLICY_LRU);
+        float tinyLfuHitRate = replayTrace(LruCache.POLICY_TINY_LFU);
+        assertTrue("lru=" + lruHitRate + " tinyLfu=" + tinyLfuHitRate, tinyLfuHitRate > lruHitRate + 0.1f);
+    }
+
+    private static float replayTrace(int policy) {
+        LruCache<Integer> cache = new LruCache<>(200, policy);
+        Random random = new Random(1);
+        int scanKey = 0;
+        for (int a = 0; a < 200000; a++) {
+            String key = a % 3 == 0 ? "scan" + scanKey++ : "hot" + (int) Math.abs(random.nextGaussian() * 80);
+            if (cache.get(key) == null) {
+                cache.put(key, a);
+            }
+        }
+        return cache.getStats().getHitRate();
+    }
+
+    @Test
+    public void filterKeys_keepInsertionOrder() {
+        LruCache<Integer> cache = new LruCache<>(100);
+        assertNull(cache.getFilterKeys("photo"));
+        cache.put("photo@50_50", 1);
+        cache.put("photo@100_100", 2);
+        cache.put("photo@50_50_b", 3);
+        cache.put("other@50_50", 4);
+        cache.put("photo", 5);
+        assertFilters(cache, "photo", "50_50", "100_100", "50_50_b");
+
+        cache.put("photo@100_100", 6);
+        assertFilters(cache, "photo", "50_50", "100_100", "50_50_b");
+        cache.put("photo@50_50", 7);
+        cache.put("photo@50_50_b", 8);
+        assertFilters(cache, "photo", "50_50", "100_100", "50_50_b");
+
+        cache.remove("photo@50_50");
+        assertFilters(cache, "photo", "100_100", "50_50_b");
+        cache.put("photo@50_50", 9);
+        assertFilters(cache, "photo", "100_100", "50_50_b", "50_50");
+        cache.remove("photo@50_50");
+        assertFilters(cache, "photo", "100_100", "50_50_b");
+        cache.remove("photo@100_100");
+        cache.put("photo@50_50", 10);
+        assertFilters(cache, "photo", "50_50_b", "50_50");
+        cache.remove("photo@50_50_b");
+        assertFilters(cache, "photo", "50_50");
+        cache.put("photo@50_50", 11);
+        assertFilters(cache, "photo", "50_50");
+        cache.remove("photo@50_50");
+        assertNull(cache.getFilterKeys("photo"));
+        assertFilters(cache, "other", "50_50");
+
+        cache.put("photo@1", 12);
+        cache.put("photo@2", 13);
+        cache.evictAll();
+        assertNull(cache.getFilterKeys("photo"));
+        assertNull(cache.getFilterKeys("other"));
+    }
+
+    @Test
+    public void filterKeys_followEvictions() {
+        LruCache<Integer> cache = new LruCache<>(3);
+        cache.put("photo@1", 1);
+        cache.put("photo@2", 2);
+        cache.put("photo@3", 3);
+        cache.get("photo@1");
+        cache.put("photo@4", 4);
+        assertFilters(cache, "photo", "1", "3", "4");
+        cache.resize(1);
+        assertFilters(cache, "photo", "4");
+    }
+
+    /**
+     * Reads only buffer the key. A write drains just two buffers, so the reads other threads
+     * left in theirs must not keep a value alive after it was evicted.
+     */
+    @Test
+    public void readBuffers_doNotKeepEvictedValuesAlive() throws Exception {
+        LruCache<Object> cache = new LruCache<>(1);
+        Object value = new Object();
+        WeakReference<Object> reference = new WeakReference<>(value);
+        cache.put("a", value);
+        for (int a = 0; a < 8; a++) {
+            Thread thread = new Thread(() -> cache.get("a"));
+            thread.start();
+            thread.join();
+        }
+        value = null;
+        cache.put("b", new Object());
+        assertFalse(cache.contains("a"));
+        for (int a = 0; a < 50 && reference.get() != null; a++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertNull(reference.get());
+    }
+
+    private static void assertFilters(LruCache<?> cache, String base, String... filters) {
+        ArrayList<String> keys = cache.getFilterKeys(base);
+        assertNotNull(base, keys);
+        assertEquals(base, Arrays.asList(filters), keys);
+    }
+
+    private static String getKey(int index) {
+        if (index % 2 == 0) {
+            return "base" + (index / 4 * 2) + "@" + (index % 4);
+        }
+        return "key" + index;
+    }
+}
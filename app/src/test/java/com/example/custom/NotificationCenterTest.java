@@ -0,0 +1,405 @@
+package com.example.custom;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+public class NotificationCenterTest {
+
+    private static final int EVENT = NotificationCenter.cameraInitied;
+    private static final int COLLAPSIBLE_EVENT = NotificationCenter.albumsDidLoaded;
+
+    /**
+     * Stands in for the main looper: posted runnables wait until the test runs them.
+     */
+    private static class ManualScheduler implements NotificationCenter.UiScheduler {
+
+        final ArrayList<Runnable> posted = new ArrayList<>();
+
+        @Override
+        public void post(Runnable runnable, long delay) {
+            posted.add(runnable);
+        }
+
+        @Override
+        public void cancel(Runnable runnable) {
+            while (posted.remove(runnable)) {
+
+            }
+        }
+
+        void runAll() {
+            while (!posted.isEmpty()) {
+                posted.remove(0).run();
+            }
+        }
+    }
+
+    private static class Recorder implements NotificationCenter.NotificationCenterDelegate {
+
+        final ArrayList<String> received = new ArrayList<>();
+
+        @Override
+        public void didReceivedNotification(int id, Object... args) {
+            received.add(id + ":" + Arrays.toString(args));
+        }
+    }
+
+    private NotificationCenter.UiScheduler previousScheduler;
+    private ManualScheduler scheduler;
+    private NotificationCenter center;
+    private Recorder recorder;
+
+    @Before
+    public void setUp() {
+        previousScheduler = NotificationCenter.uiScheduler;
+        NotificationCenter.uiScheduler = scheduler = new ManualScheduler();
+        center = new NotificationCenter(true);
+        recorder = new Recorder();
+    }
+
+    @After
+    public void tearDown() {
+        NotificationCenter.uiScheduler = previousScheduler;
+    }
+
+    @Test
+    public void post_reachesObserversInRegistrationOrder() {
+        ArrayList<String> order = new ArrayList<>();
+        NotificationCenter.NotificationCenterDelegate first = (id, args) -> order.add("first");
+        NotificationCenter.NotificationCenterDelegate second = (id, args) -> order.add("second");
+        center.addObserver(first, EVENT);
+        center.addObserver(second, EVENT);
+        center.addObserver(first, EVENT);
+        center.postNotificationName(EVENT);
+        assertEquals(Arrays.asList("first", "second"), order);
+
+        center.removeObserver(first, EVENT);
+        center.postNotificationName(EVENT);
+        assertEquals(Arrays.asList("first", "second", "second"), order);
+        center.postNotificationName(COLLAPSIBLE_EVENT);
+        assertEquals(3, order.size());
+    }
+
+    @Test
+    public void manyObservers_addAndRemoveKeepOrder() {
+        ArrayList<Integer> order = new ArrayList<>();
+        ArrayList<NotificationCenter.NotificationCenterDelegate> delegates = new ArrayList<>();
+        for (int a = 0; a < 1000; a++) {
+            int index = a;
+            NotificationCenter.NotificationCenterDelegate delegate = (id, args) -> order.add(index);
+            delegates.add(delegate);
+            center.addObserver(delegate, EVENT);
+        }
+        for (int a = 0; a < 1000; a += 2) {
+            center.removeObserver(delegates.get(a), EVENT);
+        }
+        center.addObserver(delegates.get(0), EVENT);
+        center.postNotificationName(EVENT);
+        assertEquals(501, order.size());
+        for (int a = 0; a < 500; a++) {
+            assertEquals(Integer.valueOf(a * 2 + 1), order.get(a));
+        }
+        assertEquals(Integer.valueOf(0), order.get(500));
+    }
+
+    @Test
+    public void postEvent_boxesArgumentsByType() {
+        ArrayList<Object> typed = new ArrayList<>();
+        NotificationCenter.EventDelegate delegate = event -> {
+            typed.add(event.getCount());
+            typed.add(event.getInt(0));
+            typed.add(event.getObject(1));
+        };
+        center.addObserver(delegate, EVENT);
+        center.addObserver(recorder, EVENT);
+        center.postEvent(EVENT, 7, "a", "b", null);
+        assertEquals(Arrays.asList((Object) 4, 7, "a"), typed);
+        assertEquals(Arrays.asList(EVENT + ":[7, a, b, null]"), recorder.received);
+
+        Object[][] args = new Object[1][];
+        center.addObserver((NotificationCenter.NotificationCenterDelegate) (id, a) -> args[0] = a, COLLAPSIBLE_EVENT);
+        center.postEvent(COLLAPSIBLE_EVENT, 5, "a");
+        assertEquals(Integer.class, args[0][0].getClass());
+        center.postEvent(COLLAPSIBLE_EVENT, 5, 6);
+        assertEquals(Integer.class, args[0][0].getClass());
+        assertEquals(Integer.class, args[0][1].getClass());
+        center.postEvent(COLLAPSIBLE_EVENT, 5L, 6L);
+        assertEquals(Long.class, args[0][0].getClass());
+        assertEquals(Long.class, args[0][1].getClass());
+    }
+
+    @Test
+    public void executorObserver_getsOneDrainInPostOrder() {
+        ArrayList<Runnable> executed = new ArrayList<>();
+        Executor executor = executed::add;
+        Recorder other = new Recorder();
+        center.addObserver(recorder, EVENT, executor);
+        center.addObserver(other, EVENT, executor);
+        center.postNotificationName(EVENT, 1);
+        center.postNotificationName(EVENT, 2);
+        assertTrue(recorder.received.isEmpty());
+        assertEquals(1, executed.size());
+
+        executed.remove(0).run();
+        assertEquals(Arrays.asList(EVENT + ":[1]", EVENT + ":[2]"), recorder.received);
+        assertEquals(recorder.received, other.received);
+
+        center.postNotificationName(EVENT, 3);
+        center.removeObserver(other, EVENT);
+        executed.remove(0).run();
+        assertEquals(3, recorder.received.size());
+        assertEquals(2, other.received.size());
+    }
+
+    @Test
+    public void weakObserver_isFoundByReferent() {
+        weakObserver_isFoundByReferent(center);
+        weakObserver_isFoundByReferent(new NotificationCenter(false));
+    }
+
+    private void weakObserver_isFoundByReferent(NotificationCenter center) {
+        ArrayList<Recorder> recorders = new ArrayList<>();
+        for (int a = 0; a < 200; a++) {
+            Recorder weak = new Recorder();
+            recorders.add(weak);
+            center.addWeakObserver(weak, EVENT);
+            center.addWeakObserver(weak, EVENT);
+            center.addObserver(weak, EVENT);
+        }
+        center.postNotificationName(EVENT, 1);
+        for (int a = 0; a < recorders.size(); a++) {
+            assertEquals(1, recorders.get(a).received.size());
+        }
+        for (int a = 0; a < recorders.size(); a += 2) {
+            center.removeObserver(recorders.get(a), EVENT);
+        }
+        center.postNotificationName(EVENT, 2);
+        for (int a = 0; a < recorders.size(); a++) {
+            assertEquals(a % 2 == 0 ? 1 : 2, recorders.get(a).received.size());
+        }
+        assertEquals(0, center.getPrunedObserversCount());
+    }
+
+    @Test
+    public void weakObserver_isPrunedAfterCollection() throws Exception {
+        weakObserver_isPrunedAfterCollection(center);
+        weakObserver_isPrunedAfterCollection(new NotificationCenter(false));
+    }
+
+    private void weakObserver_isPrunedAfterCollection(NotificationCenter center) throws Exception {
+        center.addObserver(recorder, EVENT);
+        Recorder weak = new Recorder();
+        WeakReference<Recorder> reference = new WeakReference<>(weak);
+        center.addWeakObserver(weak, EVENT);
+        center.postNotificationName(EVENT, 1);
+        assertEquals(1, weak.received.size());
+        weak = null;
+
+        Recorder other = new Recorder();
+        for (int a = 0; a < 100 && center.getPrunedObserversCount(EVENT) == 0; a++) {
+            System.gc();
+            Thread.sleep(10);
+            center.addObserver(other, COLLAPSIBLE_EVENT);
+            center.removeObserver(other, COLLAPSIBLE_EVENT);
+        }
+        assertNull(reference.get());
+        assertEquals(1, center.getPrunedObserversCount(EVENT));
+        assertEquals(Long.valueOf(1), center.getPrunedObserverClasses().get(Recorder.class.getName()));
+
+        center.postNotificationName(EVENT, 2);
+        assertEquals(Arrays.asList(EVENT + ":[1]", EVENT + ":[2]"), recorder.received);
+        center.removeObserver(recorder, EVENT);
+        recorder.received.clear();
+    }
+
+    @Test
+    public void threadConfinedCenter_defersChangesDuringBroadcast() {
+        NotificationCenter confined = new NotificationCenter(false);
+        Recorder added = new Recorder();
+        ArrayList<String> order = new ArrayList<>();
+        NotificationCenter.NotificationCenterDelegate[] self = new NotificationCenter.NotificationCenterDelegate[1];
+        self[0] = (id, args) -> {
+            order.add("self");
+            confined.removeObserver(self[0], EVENT);
+            confined.addObserver(added, EVENT);
+            confined.postNotificationName(COLLAPSIBLE_EVENT);
+        };
+        confined.addObserver(self[0], EVENT);
+        confined.addObserver((NotificationCenter.NotificationCenterDelegate) (id, args) -> order.add("second"), EVENT);
+        confined.addObserver(recorder, COLLAPSIBLE_EVENT);
+
+        confined.postNotificationName(EVENT, 1);
+        assertEquals(Arrays.asList("self", "second"), order);
+        assertTrue(added.received.isEmpty());
+        assertEquals(1, recorder.received.size());
+
+        confined.postNotificationName(EVENT, 2);
+        assertEquals(Arrays.asList("self", "second", "second"), order);
+        assertEquals(Arrays.asList(EVENT + ":[2]"), added.received);
+        confined.postNotificationName(NotificationCenter.didReplacedPhotoInMemCache + 100);
+    }
+
+    @Test
+    public void getInstance_rejectsAccountOutOfRange() {
+        assertSame(NotificationCenter.getInstance(0), NotificationCenter.getInstance(0));
+        for (int num : new int[]{-1, NotificationCenter.MAX_ACCOUNT_COUNT}) {
+            try {
+                NotificationCenter.getInstance(num);
+                fail("account " + num);
+            } catch (IllegalArgumentException e) {
+                assertTrue(e.getMessage(), e.getMessage().contains(String.valueOf(num)));
+            }
+        }
+    }
+
+    @Test
+    public void coalesceLatest_deliversLastPostOnce() {
+        center.addObserver(recorder, EVENT);
+        center.setCoalescePolicy(EVENT, NotificationCenter.COALESCE_LATEST, 0);
+        center.postNotificationName(EVENT, 1);
+        center.postNotificationName(EVENT, 2);
+        center.postEvent(EVENT, 3, "x");
+        assertTrue(recorder.received.isEmpty());
+        assertEquals(1, scheduler.posted.size());
+
+        scheduler.runAll();
+        assertEquals(Arrays.asList(EVENT + ":[3, x]"), recorder.received);
+        scheduler.runAll();
+        assertEquals(1, recorder.received.size());
+    }
+
+    @Test
+    public void coalesceMerge_combinesPendingArgs() {
+        center.addObserver(recorder, EVENT);
+        center.setCoalescePolicy(EVENT, NotificationCenter.COALESCE_MERGE, 16, (id, pendingArgs, args) -> new Object[]{(Integer) pendingArgs[0] + (Integer) args[0]});
+        center.postNotificationName(EVENT, 1);
+        center.postEvent(EVENT, 2);
+        center.postNotificationName(EVENT, 3);
+        scheduler.runAll();
+        assertEquals(Arrays.asList(EVENT + ":[6]"), recorder.received);
+    }
+
+    @Test
+    public void coalesceDebounce_restartsWindowOnEveryPost() {
+        center.addObserver(recorder, EVENT);
+        center.setCoalescePolicy(EVENT, NotificationCenter.COALESCE_DEBOUNCE, 100);
+        center.postNotificationName(EVENT, 1);
+        center.postNotificationName(EVENT, 2);
+        assertEquals(1, scheduler.posted.size());
+        scheduler.runAll();
+        assertEquals(Arrays.asList(EVENT + ":[2]"), recorder.received);
+    }
+
+    @Test
+    public void setCoalescePolicy_flushesPendingPostOnUiThread() {
+        center.addObserver(recorder, EVENT);
+        center.setCoalescePolicy(EVENT, NotificationCenter.COALESCE_LATEST, 1000);
+        center.postNotificationName(EVENT, 1);
+        center.setCoalescePolicy(EVENT, NotificationCenter.COALESCE_NONE, 0);
+        assertTrue(recorder.received.isEmpty());
+
+        scheduler.runAll();
+        assertEquals(Arrays.asList(EVENT + ":[1]"), recorder.received);
+        center.postNotificationName(EVENT, 2);
+        assertEquals(2, recorder.received.size());
+    }
+
+    @Test
+    public void animation_delaysPostsAndCollapsesMarkedEvents() {
+        center.addObserver(recorder, EVENT);
+        center.addObserver(recorder, COLLAPSIBLE_EVENT);
+        center.setCollapseDuringAnimation(COLLAPSIBLE_EVENT, true);
+        center.setAnimationInProgress(true);
+        center.postNotificationName(COLLAPSIBLE_EVENT, 1);
+        center.postNotificationName(EVENT, 1);
+        center.postNotificationName(COLLAPSIBLE_EVENT, 2);
+        center.postEvent(EVENT, 2);
+        center.postNotificationName(COLLAPSIBLE_EVENT, 3);
+        assertTrue(recorder.received.isEmpty());
+
+        NotificationCenter.DelayedPostStats stats = center.getDelayedPostStats();
+        assertEquals(5, stats.delayedCount);
+        assertEquals(2, stats.collapsedCount);
+        assertEquals(3, stats.pendingCount);
+
+        center.setAnimationInProgress(false);
+        scheduler.runAll();
+        assertEquals(Arrays.asList(EVENT + ":[1]", EVENT + ":[2]", COLLAPSIBLE_EVENT + ":[3]"), recorder.received);
+        stats = center.getDelayedPostStats();
+        assertEquals(0, stats.pendingCount);
+        assertEquals(1, stats.replayCount);
+    }
+
+    @Test
+    public void animation_spillsOldestPostsWhenFull() {
+        center.addObserver(recorder, EVENT);
+        center.setAnimationInProgress(true);
+        for (int a = 0; a < 130; a++) {
+            center.postNotificationName(EVENT, a);
+        }
+        assertEquals(Arrays.asList(EVENT + ":[0]", EVENT + ":[1]"), recorder.received);
+        NotificationCenter.DelayedPostStats stats = center.getDelayedPostStats();
+        assertEquals(2, stats.spilledCount);
+        assertEquals(128, stats.pendingCount);
+
+        center.setAnimationInProgress(false);
+        scheduler.runAll();
+        assertEquals(130, recorder.received.size());
+        for (int a = 0; a < 130; a++) {
+            assertEquals(EVENT + ":[" + a + "]", recorder.received.get(a));
+        }
+    }
+
+    @Test
+    public void animation_replaySpreadsOverFramesAndAllowsListedEvents() {
+        center.addObserver(recorder, EVENT);
+        center.addObserver(recorder, COLLAPSIBLE_EVENT);
+        center.setAllowedNotificationsDutingAnimation(new int[]{COLLAPSIBLE_EVENT});
+        center.setReplayFrameBudget(0);
+        center.setAnimationInProgress(true);
+        center.postNotificationName(EVENT, 1);
+        center.postNotificationName(COLLAPSIBLE_EVENT, 1);
+        center.postNotificationName(EVENT, 2);
+        center.postNotificationName(EVENT, 3);
+        assertEquals(Arrays.asList(COLLAPSIBLE_EVENT + ":[1]"), recorder.received);
+
+        center.setAnimationInProgress(false);
+        assertEquals(2, recorder.received.size());
+        center.postNotificationName(EVENT, 4);
+        assertEquals(2, recorder.received.size());
+
+        scheduler.runAll();
+        assertEquals(Arrays.asList(COLLAPSIBLE_EVENT + ":[1]", EVENT + ":[1]", EVENT + ":[2]", EVENT + ":[3]", EVENT + ":[4]"), recorder.received);
+        assertTrue(center.getDelayedPostStats().lastReplayFrames >= 4);
+    }
+
+    @Test
+    public void replay_staleSliceAfterClearIsIgnored() {
+        NotificationCenter scoped = NotificationCenter.getInstance("replay_staleSlice");
+        scoped.addObserver(recorder, EVENT);
+        scoped.setReplayFrameBudget(0);
+        scoped.setAnimationInProgress(true);
+        scoped.postNotificationName(EVENT, 1);
+        scoped.postNotificationName(EVENT, 2);
+        scoped.setAnimationInProgress(false);
+        assertEquals(Arrays.asList(EVENT + ":[1]"), recorder.received);
+        ArrayList<Runnable> stale = new ArrayList<>(scheduler.posted);
+        assertEquals(1, stale.size());
+
+        NotificationCenter.destroyInstance("replay_staleSlice");
+        assertTrue(scheduler.posted.isEmpty());
+        stale.get(0).run();
+        assertEquals(1, recorder.received.size());
+        NotificationCenter.DelayedPostStats stats = scoped.getDelayedPostStats();
+        assertEquals(0, stats.replayCount);
+        assertEquals(0, stats.pendingCount);
+    }
+}